@@ -1,6 +1,16 @@
-import java.util.ArrayList;
-import java.util.LinkedList;
-import java.util.List;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
 
 
 
@@ -18,11 +28,250 @@ public class AVLTree {
 	private IAVLNode root = null;
 	private IAVLNode min;
 	private IAVLNode max;
-	private IAVLNode virtualLeaf = new AVLNode();
+
+	// see setFingerSearch. finger is the last node search/insert/delete stopped at, or null
+	private boolean fingerSearch = false;
+	private IAVLNode finger;
+
+	// see enableMetrics, null while metrics are off
+	private AVLTreeMetrics metrics;
+	// edges the last fingerStart climbed and ancestors the last splitNodes joined, for the metrics
+	private int climbSteps;
+	private int splitSteps;
+	// see enableLatency, null while latency recording is off
+	private AVLTreeLatency latency;
+
+	// subtrees up to this size are built or copied by a single fork/join task
+	private static final int PARALLEL_THRESHOLD = 1 << 13;
+
+	// snapshot file layout, see writeSnapshot
+	private static final int SNAPSHOT_MAGIC = 0x41564c53; // "AVLS"
+	private static final int SNAPSHOT_VERSION = 1;
+	private static final int SNAPSHOT_HEADER = 12; // magic, version, n
+	private static final int SNAPSHOT_BUFFER = 1 << 20;
+
+	/**
+	 * the single virtual leaf shared by every node of every AVLTree. it is
+	 * immutable - code that relinks nodes must check isRealNode() before setting
+	 * a child's parent (see linkParent)
+	 */
+	private static final AVLNode VIRTUAL_LEAF = new AVLTree().new VirtualNode();
 
 	public int MAXKEY() {
 		return this.max.getKey();
 	}
+
+	/**
+	 * public static AVLTree fromSorted(int[] keys, String[] values)
+	 *
+	 * builds a perfectly balanced tree of the items (keys[i], values[i]) in O(n),
+	 * without a single rotation. every node gets its height, rank and size, and
+	 * min/max are set directly.
+	 *
+	 * precondition: keys is strictly increasing, keys.length == values.length and
+	 * no key is -1 (the key of the virtual leaf)
+	 */
+	public static AVLTree fromSorted(int[] keys, String[] values) {
+		checkSorted(keys, values);
+		AVLTree tree = new AVLTree();
+		if (keys.length > 0) {
+			tree.root = tree.buildBalanced(keys, values, 0, keys.length - 1, null);
+		}
+		return tree;
+	}
+
+	// throws IllegalArgumentException unless fromSorted's precondition holds
+	private static void checkSorted(int[] keys, String[] values) {
+		if (keys.length != values.length) {
+			throw new IllegalArgumentException("got " + keys.length + " keys and " + values.length + " values");
+		}
+		for (int i = 0; i < keys.length; i++) {
+			if (keys[i] == -1) {
+				throw new IllegalArgumentException("key -1 is reserved for virtual nodes");
+			}
+			if (i > 0 && keys[i] <= keys[i - 1]) {
+				throw new IllegalArgumentException("keys are not strictly increasing at index " + i);
+			}
+		}
+	}
+
+	/**
+	 * private IAVLNode buildBalanced(int[] keys, String[] values, int from, int to, IAVLNode parent)
+	 *
+	 * returns the root of a balanced subtree of the items from..to (inclusive),
+	 * whose middle item is the root. the subtree's min/max nodes become this
+	 * tree's min/max when they are the ends of the arrays.
+	 */
+	private IAVLNode buildBalanced(int[] keys, String[] values, int from, int to, IAVLNode parent) {
+		if (from > to) {
+			return VIRTUAL_LEAF;
+		}
+		int mid = (from + to) >>> 1;
+		IAVLNode node = new AVLNode(keys[mid], values[mid]);
+		node.setParent(parent);
+		node.setLeft(this.buildBalanced(keys, values, from, mid - 1, node));
+		node.setRight(this.buildBalanced(keys, values, mid + 1, to, node));
+		node.update();
+		node.calcRank();
+		if (mid == 0) {
+			this.min = node;
+		}
+		if (mid == keys.length - 1) {
+			this.max = node;
+		}
+		return node;
+	}
+
+	/**
+	 * public static AVLTree fromSortedParallel(int[] keys, String[] values)
+	 *
+	 * same as fromSorted, but the two halves of every large range are built by
+	 * separate tasks of the common ForkJoinPool.
+	 */
+	public static AVLTree fromSortedParallel(int[] keys, String[] values) {
+		checkSorted(keys, values);
+		AVLTree tree = new AVLTree();
+		if (keys.length > 0) {
+			tree.root = ForkJoinPool.commonPool().invoke(tree.new BuildTask(keys, values, 0, keys.length - 1, null));
+		}
+		return tree;
+	}
+	/**
+	 * public void writeSnapshot(FileChannel channel)
+	 *
+	 * writes the tree at the channel's position, in key order and without any of
+	 * the tree's structure (little endian):
+	 *
+	 * magic "AVLS", version, n, then the n keys as ints, then the n infos, each
+	 * one an int byte length (-1 for null) and its UTF-8 bytes.
+	 *
+	 * goes through one 1MB direct buffer, so the channel sees a few large writes.
+	 * the tree must not be modified while it is written.
+	 */
+	public void writeSnapshot(FileChannel channel) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocateDirect(SNAPSHOT_BUFFER).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.putInt(SNAPSHOT_MAGIC).putInt(SNAPSHOT_VERSION).putInt(this.size());
+		IAVLNode first = this.empty() ? null : firstNode(this.getRoot());
+		for (IAVLNode node = first; node != null; node = nextNode(node)) {
+			if (buffer.remaining() < 4) {
+				drain(channel, buffer);
+			}
+			buffer.putInt(node.getKey());
+		}
+		for (IAVLNode node = first; node != null; node = nextNode(node)) {
+			if (buffer.remaining() < 4) {
+				drain(channel, buffer);
+			}
+			if (node.getValue() == null) {
+				buffer.putInt(-1);
+				continue;
+			}
+			byte[] bytes = node.getValue().getBytes(StandardCharsets.UTF_8);
+			buffer.putInt(bytes.length);
+			for (int offset = 0; offset < bytes.length;) { // an info may be larger than the buffer
+				if (!buffer.hasRemaining()) {
+					drain(channel, buffer);
+				}
+				int length = Math.min(bytes.length - offset, buffer.remaining());
+				buffer.put(bytes, offset, length);
+				offset += length;
+			}
+		}
+		drain(channel, buffer);
+	}
+
+	/**
+	 * public static AVLTree readSnapshot(FileChannel channel)
+	 *
+	 * reads a tree written by writeSnapshot from the channel's position, and
+	 * leaves the position right after it. the keys are read in bulk into an
+	 * int[], and the tree is built from the sorted arrays with fromSorted (or
+	 * fromSortedParallel for large trees), in linear time and without a single
+	 * rotation. throws IOException if the data is not a valid snapshot, and
+	 * before allocating anything if n or an info length cannot fit in the bytes
+	 * left in the channel.
+	 */
+	public static AVLTree readSnapshot(FileChannel channel) throws IOException {
+		long start = channel.position();
+		long available = channel.size() - start;
+		ByteBuffer buffer = ByteBuffer.allocateDirect(SNAPSHOT_BUFFER).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.flip(); // nothing read yet
+		fill(channel, buffer, SNAPSHOT_HEADER);
+		if (buffer.getInt() != SNAPSHOT_MAGIC) {
+			throw new IOException("not an AVLTree snapshot");
+		}
+		int version = buffer.getInt();
+		if (version != SNAPSHOT_VERSION) {
+			throw new IOException("unsupported snapshot version " + version);
+		}
+		int n = buffer.getInt();
+		if (n < 0 || SNAPSHOT_HEADER + 8L * n > available) { // every item takes at least a key and a length
+			throw new IOException("corrupt snapshot: size " + n + " in " + available + " bytes");
+		}
+
+		int[] keys = new int[n];
+		for (int i = 0; i < n;) {
+			fill(channel, buffer, 4);
+			int count = Math.min(n - i, buffer.remaining() / 4);
+			buffer.asIntBuffer().get(keys, i, count);
+			buffer.position(buffer.position() + 4 * count);
+			i += count;
+		}
+
+		String[] values = new String[n];
+		byte[] bytes = new byte[64];
+		for (int i = 0; i < n; i++) {
+			fill(channel, buffer, 4);
+			int length = buffer.getInt();
+			if (length < -1 || length > available) {
+				throw new IOException("corrupt snapshot: info length " + length);
+			}
+			if (length == -1) {
+				continue; // null info
+			}
+			if (length > bytes.length) {
+				bytes = new byte[Math.max(length, 2 * bytes.length)];
+			}
+			for (int offset = 0; offset < length;) {
+				fill(channel, buffer, 1);
+				int count = Math.min(length - offset, buffer.remaining());
+				buffer.get(bytes, offset, count);
+				offset += count;
+			}
+			values[i] = new String(bytes, 0, length, StandardCharsets.UTF_8);
+		}
+		channel.position(channel.position() - buffer.remaining()); // give back what was read past the end
+
+		try {
+			return n > PARALLEL_THRESHOLD ? fromSortedParallel(keys, values) : fromSorted(keys, values);
+		} catch (IllegalArgumentException e) {
+			throw new IOException("corrupt snapshot: " + e.getMessage(), e);
+		}
+	}
+
+	// writes out everything in the buffer and clears it
+	private static void drain(FileChannel channel, ByteBuffer buffer) throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	// reads from the channel until at least count bytes remain in the buffer
+	private static void fill(FileChannel channel, ByteBuffer buffer, int count) throws IOException {
+		if (buffer.remaining() >= count) {
+			return;
+		}
+		buffer.compact();
+		while (buffer.position() < count) {
+			if (channel.read(buffer) < 0) {
+				throw new EOFException("snapshot ends too early");
+			}
+		}
+		buffer.flip();
+	}
+
 	/**
 	 * public boolean empty()
 	 *
@@ -40,6 +289,80 @@ public class AVLTree {
 		return false;
 	}
 
+	/**
+	 * public void setFingerSearch(boolean enabled)
+	 *
+	 * turns finger search on or off (it is off in a new tree). with finger search
+	 * on, search, insert and delete do not start at the root. they start at the
+	 * min, the max or the node the last of them stopped at - whichever key is
+	 * closest to k - climb to the lowest ancestor whose subtree can hold k and
+	 * descend from there. from min/max this is O(log d) for d keys between the
+	 * finger and k; from the last node the climb ends at the common ancestor of
+	 * the two keys, which for a run of nearby keys is O(1) amortized. keys far
+	 * from every finger are searched from the root, in O(log n) as before.
+	 */
+	public void setFingerSearch(boolean enabled) {
+		this.fingerSearch = enabled;
+		this.finger = null;
+	}
+
+	public boolean isFingerSearch() {
+		return this.fingerSearch;
+	}
+
+	/**
+	 * public AVLTreeMetrics enableMetrics()
+	 *
+	 * starts counting operations, rotations, path lengths and split/join costs
+	 * (see AVLTreeMetrics), and returns the counters. if metrics are already on,
+	 * returns the same counters. while they are off the tree checks one null
+	 * field per step, nothing more.
+	 */
+	public AVLTreeMetrics enableMetrics() {
+		if (this.metrics == null) {
+			this.metrics = new AVLTreeMetrics();
+		}
+		return this.metrics;
+	}
+
+	// stops counting; the counters keep their values. returns them, or null if metrics were off
+	public AVLTreeMetrics disableMetrics() {
+		AVLTreeMetrics disabled = this.metrics;
+		this.metrics = null;
+		return disabled;
+	}
+
+	// the counters, or null if metrics are off
+	public AVLTreeMetrics getMetrics() {
+		return this.metrics;
+	}
+
+	/**
+	 * public AVLTreeLatency enableLatency()
+	 *
+	 * starts timing search, insert, delete, split, join, keysToArray and
+	 * infoToArray into histograms (see AVLTreeLatency), and returns them. if
+	 * latency recording is already on, returns the same histograms.
+	 */
+	public AVLTreeLatency enableLatency() {
+		if (this.latency == null) {
+			this.latency = new AVLTreeLatency();
+		}
+		return this.latency;
+	}
+
+	// stops timing; the histograms keep their values. returns them, or null if recording was off
+	public AVLTreeLatency disableLatency() {
+		AVLTreeLatency disabled = this.latency;
+		this.latency = null;
+		return disabled;
+	}
+
+	// the histograms, or null if latency recording is off
+	public AVLTreeLatency getLatency() {
+		return this.latency;
+	}
+
 	/**
 	 * public String search(int k)
 	 *
@@ -47,6 +370,20 @@ public class AVLTree {
 	 * returns null
 	 */
 	public String search(int k) {
+		if (this.latency == null) {
+			return this.searchItem(k);
+		}
+		long start = System.nanoTime();
+		String result = this.searchItem(k);
+		this.latency.getSearch().record(System.nanoTime() - start);
+		return result;
+	}
+
+	// search without the latency recording
+	private String searchItem(int k) {
+		if (this.metrics != null) {
+			this.metrics.search();
+		}
 		IAVLNode node = SearchNode(k);
 		if (node!=null && node.isRealNode()) {
 			return node.getValue();
@@ -64,6 +401,19 @@ public class AVLTree {
 	 * item with key k already exists in the tree.
 	 */
 	public int insert(int k, String i) {
+		long start = this.latency == null ? 0 : System.nanoTime();
+		int result = this.insertItem(k, i);
+		if (this.latency != null) {
+			this.latency.getInsert().record(System.nanoTime() - start);
+		}
+		if (this.metrics != null) {
+			this.metrics.insert(Math.max(result, 0)); // an existing key is an insert without rebalancing
+		}
+		return result;
+	}
+
+	// insert without counting it in the metrics or recording its latency, so join can use it
+	private int insertItem(int k, String i) {
 
 		IAVLNode newNode = new AVLNode(k, i);
 		if (this.empty()||!this.root.isRealNode()) { // insert root
@@ -78,7 +428,7 @@ public class AVLTree {
 				this.updatemin();
 			}
 			
-			IAVLNode position = this.findPosition(this.root, k);
+			IAVLNode position = this.locate(k);
 			if (position.getKey() == k) { // key already exists
 				return -1;
 
@@ -96,22 +446,36 @@ public class AVLTree {
 			}
 			newNode.setParent(position);
 		}
+		for (IAVLNode node = newNode.getParent(); node != null; node = node.getParent()) {
+			node.setSize(node.getSize() + 1); // before rebalance, so the rotations see the new sizes
+		}
 		int rebalanceNum = rebalance(newNode);
-		newNode.updatePath();
+		updateInsertHeights(newNode);
+		if (this.fingerSearch) {
+			this.finger = newNode;
+		}
 		return rebalanceNum;
 
 	}
 
 	public int rebalance(IAVLNode node) {
 		int cnt = 0;
+		IAVLNode start = node;
 		while (node != null) {
 			
 			AVLNode newNode = (AVLNode) node;
 
+			if (node != start && newNode.rankDiffLeft() != 0 && newNode.rankDiffRight() != 0) {
+				break; // node's rank did not change, so no rank above it does
+			}
+
 			if (newNode.rankDiffLeft() == 0) { // problem with left subtree
 				if (newNode.rankDiffRight() == 1) { // case 1: node-01, not terminal
 					newNode.promote(); // sol: promote
 					cnt++;
+					if (this.metrics != null) {
+						this.metrics.insertPromotion();
+					}
 				} else {
 					if (newNode.getLeft().rankDiffLeft() == 1 && // case 2: node-02 with child-12, terminal
 							newNode.getLeft().rankDiffRight() == 2) {
@@ -119,6 +483,9 @@ public class AVLTree {
 						newNode.demote(); // sol: demote + right rotate
 						node = this.rotateRight(newNode);
 						cnt += 2;
+						if (this.metrics != null) {
+							this.metrics.insertRotation(false);
+						}
 
 					} else if(newNode.getLeft().rankDiffRight() == 1 && 
 							newNode.getLeft().rankDiffLeft() == 2){ // case3: node-02 with child-21, terminal
@@ -128,10 +495,16 @@ public class AVLTree {
 						node.promote();
 						node = this.rotateRight(newNode);
 						cnt += 5;
+						if (this.metrics != null) {
+							this.metrics.insertRotation(true);
+						}
 					}
 					else { 	//this case is used only in join!!!!
 						newNode.getLeft().promote();
 						node = this.rotateRight(newNode);
+						if (this.metrics != null) {
+							this.metrics.insertRotation(false);
+						}
 					}
 				}
 			}
@@ -140,6 +513,9 @@ public class AVLTree {
 				if (newNode.rankDiffLeft() == 1) { // case 1: node-01, not terminal
 					newNode.promote(); // sol: promote
 					cnt++;
+					if (this.metrics != null) {
+						this.metrics.insertPromotion();
+					}
 				} else {
 					if (newNode.getRight().rankDiffLeft() == 2 && // case2: node-20 with child-12, terminal
 							newNode.getRight().rankDiffRight() == 1) {
@@ -147,6 +523,9 @@ public class AVLTree {
 						newNode.demote(); // sol: demote + left rotate
 						node = this.rotateLeft(newNode);
 						cnt += 2;
+						if (this.metrics != null) {
+							this.metrics.insertRotation(false);
+						}
 
 					} else if(newNode.getRight().rankDiffRight() == 2 &&
 							newNode.getRight().rankDiffLeft() == 1) { // case3: node-02 with child-21, terminal
@@ -156,10 +535,16 @@ public class AVLTree {
 						node.promote();
 						node = this.rotateLeft(newNode);
 						cnt += 5;
+						if (this.metrics != null) {
+							this.metrics.insertRotation(true);
+						}
 					}
 					else { 	//this case is used only in join!!!!
 						newNode.getRight().promote();
 						node = this.rotateLeft(newNode);
+						if (this.metrics != null) {
+							this.metrics.insertRotation(false);
+						}
 					}
 
 				}
@@ -171,6 +556,25 @@ public class AVLTree {
 	}
 
 
+	/**
+	 * private static void updateInsertHeights(IAVLNode node)
+	 *
+	 * updatePath for the node insert just linked and rebalanced, whose ancestors
+	 * already count it in their sizes: heights change only from node up to where
+	 * the insert was absorbed (a node whose height stays the same, or the top of
+	 * a rotation, which has the height the subtree had before), so the walk
+	 * stops there instead of at the root.
+	 */
+	private static void updateInsertHeights(IAVLNode node) {
+		for (node = node.getParent(); node != null; node = node.getParent()) {
+			int height = node.getHeight();
+			node.update();
+			if (node.getHeight() == height) {
+				break;
+			}
+		}
+	}
+
 	/**
 	 * public int delete(int k)
 	 *
@@ -181,159 +585,166 @@ public class AVLTree {
 	 * -1 if an item with key k was not found in the tree.
 	 */
 	public int delete(int k) {
-		if (this.search(k)==null) {
+		if (this.latency == null) {
+			return this.deleteItem(k);
+		}
+		long start = System.nanoTime();
+		int result = this.deleteItem(k);
+		this.latency.getDelete().record(System.nanoTime() - start);
+		return result;
+	}
+
+	// delete without the latency recording
+	private int deleteItem(int k) {
+		IAVLNode node = SearchNode(k);
+		if (node==null) {
 			// there is no key with value k in the tree
+			if (this.metrics != null) {
+				this.metrics.delete(0);
+			}
 			return -1;}
-		// first, we need to check if we're deleting a saved field(min/max)
-		int [] binaryminmax= {0,0};
-		if (this.min.getKey()==k) {
-			binaryminmax[0]=1;}
-		if (this.max.getKey()==k) {
-			binaryminmax[1]=1;}
-		// initializing a counter for rebalancing actions
-		int[] counter = {0};
-		//starting recursive function
-		this.root=DelRec(k, this.root, counter);
-		if (this.root==virtualLeaf) {
-			//the tree is empty
-			this.root = null;
+		if (this.fingerSearch) {
+			// node itself leaves the tree, but its parent stays
+			this.finger = node.getParent();
 		}
-		// update lost values 
-		if (binaryminmax[0]==1) {
-			updatemin();}
-		if (binaryminmax[1]==1) {
-			updatemax();}
-		return counter[0];
+		// the neighbours of a deleted min/max take their place; they stay in the tree
+		if (this.min == node) {
+			IAVLNode next = nextNode(node);
+			this.min = next != null ? next : VIRTUAL_LEAF;
 		}
-	
-	// a recursive deletion function, returns the node on the right/left with it's subtree balanced and without node k
-	private IAVLNode DelRec(int k,IAVLNode root, int[] counter) {
-		// First we find the node recursively
-		if (!root.isRealNode()) {
-			return root;} 			// recursion end
-		if (root.getKey()>k) {		
-			// we need to turn left
-			root.setLeft(DelRec(k, root.getLeft(), counter));}
-		if (root.getKey()<k) {		
-			// we need to turn right
-			root.setRight(DelRec(k, root.getRight(), counter));}
-		if(root.getKey()==k) {		
-			// we found the node to delete!
-			if (!root.getLeft().isRealNode() || !root.getRight().isRealNode()) {
-				// node has one or zero sons
-				IAVLNode temp = virtualLeaf;
-				if (root.getLeft().isRealNode()) { // we need to find if the node has a real son
-					temp = root.getLeft();
-				}else {
-					temp = root.getRight();
-				}
-				if (!temp.isRealNode()) {
-					// root doesn't have kids
-					root= virtualLeaf;
-				}else {
-					temp.setParent(root.getParent());
-					root= temp;
-				}
-			}else {
-				//node has two sons
-				// first we'll find it's successor
-				IAVLNode successor = successor(root);
-				// now lets switch them
-				Switch(root, successor);
-				// now the root and it's successor are switched. lets delete the the root node from the right subtree recursively
-				successor.setRight(DelRec(k, successor.getRight(), counter));
-				root = successor;
-			}
+		if (this.max == node) {
+			IAVLNode prev = prevNode(node);
+			this.max = prev != null ? prev : VIRTUAL_LEAF;
 		}
-			
-			if(!root.isRealNode()) {		// this means our tree only had one node
-				return root;
-			}
-			
-			// update the height anvd size of the node
-			root.setHeight(Math.max(root.getLeft().getHeight(), root.getRight().getHeight())+1);
-			root.setSize(root.getLeft().getSize()+ root.getRight().getSize()+1);
+		if (node.getLeft().isRealNode() && node.getRight().isRealNode()) {
+			// node has two sons: its successor takes its place, and node moves down to where the successor was
+			Switch(node, successor(node));
+		}
+		// node has one or zero sons now, so it can be spliced out
+		IAVLNode child = node.getLeft().isRealNode() ? node.getLeft() : node.getRight();
+		IAVLNode parent = node.getParent();
+		if (parent == null) {
+			this.root = child.isRealNode() ? child : null;
+		} else if (parent.getLeft() == node) {
+			parent.setLeft(child);
+		} else {
+			parent.setRight(child);
+		}
+		linkParent(child, parent);
+		node.setLeft(VIRTUAL_LEAF);
+		node.setRight(VIRTUAL_LEAF);
+		node.setParent(null);
+		int rebalanceNum = this.rebalanceDelete(parent);
+		if (this.metrics != null) {
+			this.metrics.delete(rebalanceNum);
+		}
+		return rebalanceNum;
+	}
+
+	/**
+	 * private int rebalanceDelete(IAVLNode node)
+	 *
+	 * walks from node (the parent of the removed node) up to the root, fixing
+	 * heights and sizes, and rank differences with the deletion cases: 2,2 -
+	 * demote; 3,1 / 1,3 - rotate, by the rank differences of the taller child.
+	 * once a node keeps its rank and height the rest of the way only decrements
+	 * sizes. returns the number of rebalancing operations.
+	 */
+	private int rebalanceDelete(IAVLNode node) {
+		int counter = 0;
+		while (node != null) {
+			int height = node.getHeight();
+			int rank = node.getRank();
+			node.setHeight(Math.max(node.getLeft().getHeight(), node.getRight().getHeight())+1);
+			node.setSize(node.getLeft().getSize()+ node.getRight().getSize()+1);
+
+			int rdl = node.rankDiffLeft();
+			int rdr = node.rankDiffRight();
+			IAVLNode top = node; // the root of node's subtree after the fix
 
-			// let's check if we need to rebalance our subtree
-			int rdl = root.rankDiffLeft();
-			int rdr = root.rankDiffRight();
-			
 			if (rdl==2 && rdr==2) {
-				root.demote();
-				counter[0]+=1;
-				return root;
-			}
-			if (rdl==2 && rdr==1) {
-				return root;
-			}
-			if (rdl==1 && rdr==2) {
-				return root;
-			}
-			if (rdl==3 && rdr==1) {
-				IAVLNode y = root.getRight();
+				node.demote();
+				counter+=1;
+				if (this.metrics != null) {
+					this.metrics.deleteDemotion();
+				}
+			} else if (rdl==3 && rdr==1) {
+				IAVLNode y = node.getRight();
 				if(y.rankDiffLeft()==1 && y.rankDiffRight()==1) {
-					Lrotate(y);
-					root.demote();
+					top = Lrotate(y);
+					node.demote();
 					y.promote();
-					counter[0]+=3;
-					return y;
-				}
-				if(y.rankDiffLeft()==1 && y.rankDiffRight()==2) {
-					Lrotate(Rrotate(y.getLeft()));
-					root.demote();
-					root.demote();
+					counter+=3;
+					if (this.metrics != null) {
+						this.metrics.deleteRotation(false);
+					}
+				} else if(y.rankDiffLeft()==1 && y.rankDiffRight()==2) {
+					top = Lrotate(Rrotate(y.getLeft()));
+					node.demote();
+					node.demote();
 					y.demote();
-					y.getParent().promote();
-					counter[0]+=6;
-					return y.getParent();
-				}
-				if(y.rankDiffLeft()==2 && y.rankDiffRight()==1) {
-					Lrotate(y);
-					root.demote();
-					root.demote();
-					counter[0]+=3;
-					return y;
+					top.promote();
+					counter+=6;
+					if (this.metrics != null) {
+						this.metrics.deleteRotation(true);
+					}
+				} else if(y.rankDiffLeft()==2 && y.rankDiffRight()==1) {
+					top = Lrotate(y);
+					node.demote();
+					node.demote();
+					counter+=3;
+					if (this.metrics != null) {
+						this.metrics.deleteRotation(false);
+					}
 				}
-				
-			}
-			if (rdl==1 && rdr==3) {
-				IAVLNode y = root.getLeft();
+			} else if (rdl==1 && rdr==3) {
+				IAVLNode y = node.getLeft();
 				if(y.rankDiffLeft()==1 && y.rankDiffRight()==1) {
-					Rrotate(y);
-					root.demote();
+					top = Rrotate(y);
+					node.demote();
 					y.promote();
-					counter[0]+=3;
-					return y;
-				}
-				if(y.rankDiffLeft()==2 && y.rankDiffRight()==1) {
-					Rrotate(Lrotate(y.getRight()));
-					root.demote();
-					root.demote();
+					counter+=3;
+					if (this.metrics != null) {
+						this.metrics.deleteRotation(false);
+					}
+				} else if(y.rankDiffLeft()==2 && y.rankDiffRight()==1) {
+					top = Rrotate(Lrotate(y.getRight()));
+					node.demote();
+					node.demote();
 					y.demote();
-					y.getParent().promote();
-					counter[0]+=6;
-					return y.getParent();
+					top.promote();
+					counter+=6;
+					if (this.metrics != null) {
+						this.metrics.deleteRotation(true);
+					}
+				} else if(y.rankDiffLeft()==1 && y.rankDiffRight()==2) {
+					top = Rrotate(y);
+					node.demote();
+					node.demote();
+					counter+=3;
+					if (this.metrics != null) {
+						this.metrics.deleteRotation(false);
+					}
 				}
-				if(y.rankDiffLeft()==1 && y.rankDiffRight()==2) {
-					Rrotate(y);
-					root.demote();
-					root.demote();
-					counter[0]+=3;
-					return y;
+			}
+			if (top == node && node.getRank() == rank && node.getHeight() == height) {
+				// nothing changed at node, so above it the ranks and heights stay and each subtree lost one item
+				for (node = node.getParent(); node != null; node = node.getParent()) {
+					node.setSize(node.getSize() - 1);
 				}
-				
+				break;
 			}
-			
-			// no need for rotations :)
-			return root;
-		
+			if (top.getParent() == null) {
+				this.root = top;
+			}
+			node = top.getParent();
+		}
+		return counter;
 	}
 
 		private IAVLNode Lrotate(IAVLNode y) {
 			IAVLNode z = y.getParent();
-			IAVLNode b = y.getRight();
 			IAVLNode a = y.getLeft();
-			IAVLNode x = z.getLeft();
 			// start rotation
 			if (z.getParent()!= null) {
 				if (z.getParent().getLeft()==z) {
@@ -344,22 +755,18 @@ public class AVLTree {
 			}
 			y.setParent(z.getParent());
 			z.setRight(a);
-			a.setParent(z);
+			linkParent(a, z);
 			y.setLeft(z);
 			z.setParent(y);
-			IAVLNode[] list = {a,b,z,x,y};
-			for (IAVLNode node : list) {
-				if (node.isRealNode()) {
-					node.update();}
-			}
+			// the other subtrees are unchanged, only z and then y above it need updating
+			z.update();
+			y.update();
 			return y;
 		}
 	
 	private IAVLNode Rrotate(IAVLNode y) {
 		IAVLNode z = y.getParent();
-		IAVLNode b = y.getLeft();
 		IAVLNode a = y.getRight();
-		IAVLNode x = z.getRight();
 		// start rotation
 		if (z.getParent()!= null) {
 			if (z.getParent().getLeft()==z) {
@@ -370,18 +777,27 @@ public class AVLTree {
 		}
 		y.setParent(z.getParent());
 		z.setLeft(a);
-		a.setParent(z);
+		linkParent(a, z);
 		y.setRight(z);
 		z.setParent(y);
-		IAVLNode[] list = {a,b,z,x,y};
-		for (IAVLNode node : list) {
-			if (node.isRealNode()) {
-				node.update();}
-		}
+		// the other subtrees are unchanged, only z and then y above it need updating
+		z.update();
+		y.update();
 		return y;
 	}
 
 	private void Switch(IAVLNode n, IAVLNode s) {
+		// s takes n's place in the tree, so it takes n's rank, height and size as well
+		int rank = ((AVLNode) n).rank;
+		((AVLNode) n).rank = ((AVLNode) s).rank;
+		((AVLNode) s).rank = rank;
+		int height = n.getHeight();
+		n.setHeight(s.getHeight());
+		s.setHeight(height);
+		int size = n.getSize();
+		n.setSize(s.getSize());
+		s.setSize(size);
+
 		if (n.getRight()==s) {
 			if (this.getRoot()==n) {
 				s.setParent(null);
@@ -389,6 +805,11 @@ public class AVLTree {
 				n.setParent(s);
 			}else {
 				s.setParent(n.getParent());
+				if (s.getParent().getLeft()==n) {
+					s.getParent().setLeft(s);
+				}else {
+					s.getParent().setRight(s);
+				}
 				n.setParent(s);
 			}
 
@@ -398,20 +819,21 @@ public class AVLTree {
 			s.setLeft(n.getLeft());
 			n.setLeft(temp);
 			s.getLeft().setParent(s);
-			n.getLeft().setParent(n);
+			linkParent(n.getLeft(), n);
+			linkParent(n.getRight(), n);
 		}else {
 			//switching left sons
 			IAVLNode temp = s.getLeft();
 			s.setLeft(n.getLeft());
 			n.setLeft(temp);
 			s.getLeft().setParent(s);
-			n.getLeft().setParent(n);
+			linkParent(n.getLeft(), n);
 			//switching Right sons
 			temp = s.getRight();
 			s.setRight(n.getRight());
 			n.setRight(temp);
 			s.getRight().setParent(s);
-			n.getRight().setParent(n);
+			linkParent(n.getRight(), n);
 			//switching Parents
 			temp = s.getParent();
 			if (this.getRoot()==n) {
@@ -458,18 +880,109 @@ public class AVLTree {
 		if (this.empty()){
 			return null;
 		}
-		IAVLNode node = this.getRoot();
-		while (node.isRealNode()) {
-			if (node.getKey() == k) {
-				return node;
+		IAVLNode node = this.locate(k);
+		return node.getKey() == k ? node : null;
+	}
+
+	/**
+	 * private IAVLNode locate(int k)
+	 *
+	 * returns the node with key k, or the leaf under which k would be inserted.
+	 * descends from the root, or from a finger if finger search is on. with
+	 * metrics on, the edges climbed and descended are counted on the way.
+	 *
+	 * precondition: the tree is not empty
+	 */
+	private IAVLNode locate(int k) {
+		if (!this.fingerSearch) {
+			IAVLNode root = this.getRoot();
+			return this.metrics == null ? this.findPosition(root, k) : this.countedPosition(root, k, 0);
+		}
+		IAVLNode start = this.fingerStart(k);
+		IAVLNode position = this.metrics == null ? this.findPosition(start, k)
+				: this.countedPosition(start, k, this.climbSteps);
+		this.finger = position;
+		return position;
+	}
+
+	// findPosition from the real node start, recording a path of steps edges plus the ones it descends
+	private IAVLNode countedPosition(IAVLNode start, int k, int steps) {
+		IAVLNode position = start;
+		while (position.getKey() != k) {
+			IAVLNode next = k < position.getKey() ? position.getLeft() : position.getRight();
+			if (!next.isRealNode()) {
+				break;
 			}
-			if (node.getKey() > k) {
-				node = node.getLeft();
-			} else {
-				node = node.getRight();
+			position = next;
+			steps++;
+		}
+		this.metrics.descent(steps);
+		return position;
+	}
+
+	// the number of edges from node up to the root
+	private static int depth(IAVLNode node) {
+		int depth = 0;
+		for (IAVLNode parent = node.getParent(); parent != null; parent = parent.getParent()) {
+			depth++;
+		}
+		return depth;
+	}
+
+	/**
+	 * private IAVLNode fingerStart(int k)
+	 *
+	 * returns the node to descend from: the climb from the finger closest to k,
+	 * or the root if that finger is too far. climbing d keys and descending
+	 * again costs about 2 log d, so a finger only pays off while d < sqrt(n);
+	 * key distance stands in for d, scaled by the key span of the tree.
+	 */
+	private IAVLNode fingerStart(int k) {
+		this.climbSteps = 0;
+		IAVLNode closest = this.closestFinger(k);
+		if (k <= this.min.getKey() || k >= this.max.getKey()) {
+			return closest; // min/max is where k is or goes, climbing from it would reach the root
+		}
+		long span = (long) this.max.getKey() - this.min.getKey();
+		if (Math.abs((long) k - closest.getKey()) > span >> (this.getRoot().getHeight() / 2)) {
+			return this.getRoot();
+		}
+		return this.climb(closest, k);
+	}
+
+	// min, max or the last finger - the one whose key is closest to k
+	private IAVLNode closestFinger(int k) {
+		if (this.min == null || this.max == null || !this.min.isRealNode() || !this.max.isRealNode()) {
+			this.updatemin();
+			this.updatemax();
+		}
+		if (k <= this.min.getKey()) {
+			return this.min;
+		}
+		if (k >= this.max.getKey()) {
+			return this.max;
+		}
+		IAVLNode closest = (long) k - this.min.getKey() <= (long) this.max.getKey() - k ? this.min : this.max;
+		if (this.finger != null && Math.abs((long) k - this.finger.getKey()) < Math.abs((long) k - closest.getKey())) {
+			closest = this.finger;
+		}
+		return closest;
+	}
+
+	// the lowest ancestor of node (or node itself) whose subtree holds every key between node's and k
+	private IAVLNode climb(IAVLNode node, int k) {
+		int steps = 0;
+		while (node.getParent() != null && node.getKey() != k) {
+			IAVLNode parent = node.getParent();
+			boolean isLeftChild = parent.getLeft() == node;
+			if (k > node.getKey() ? isLeftChild && k < parent.getKey() : !isLeftChild && k > parent.getKey()) {
+				break; // the parent's key bounds node's subtree on k's side
 			}
+			node = parent;
+			steps++;
 		}
-		return null;
+		this.climbSteps = steps;
+		return node;
 	}
 
 	/**
@@ -506,7 +1019,7 @@ public class AVLTree {
 	 */
 	public void updatemax() {
 		if (this.empty()) {
-			this.max = virtualLeaf;
+			this.max = VIRTUAL_LEAF;
 			return;
 
 		}
@@ -528,7 +1041,7 @@ public class AVLTree {
 
 	public void updatemin() {
 		if (this.empty()) {
-			this.min = virtualLeaf;
+			this.min = VIRTUAL_LEAF;
 			return;
 		}
 		IAVLNode node = this.getRoot();
@@ -547,6 +1060,17 @@ public class AVLTree {
 	 * if the tree is empty.
 	 */
 	public int[] keysToArray() {
+		if (this.latency == null) {
+			return this.collectKeys();
+		}
+		long start = System.nanoTime();
+		int[] result = this.collectKeys();
+		this.latency.getKeysToArray().record(System.nanoTime() - start);
+		return result;
+	}
+
+	// keysToArray without the latency recording
+	private int[] collectKeys() {
 		
 		int[] keysArray = new int[0];
 
@@ -555,35 +1079,14 @@ public class AVLTree {
 		}
 		
 		keysArray = new int[this.getRoot().getSize()];
-		
-		List<IAVLNode> inOrderNodeList = new LinkedList<IAVLNode>();
-		this.inOrderList(this.getRoot(), inOrderNodeList);
 
 		int i = 0;
-		for (IAVLNode node : inOrderNodeList) {
+		for (IAVLNode node = firstNode(this.getRoot()); node != null; node = nextNode(node)) {
 			keysArray[i] = node.getKey();
 			i++;
 		}
 		return keysArray;
 	}
-	
-
-	/**
-	 * private void inOrderList(IAVLNode node, List<IAVLNode> inOrderNodeList)
-	 *
-	 * adds nodes to a linked list, in an "in order walk" order
-	 */
-	
-	private void inOrderList(IAVLNode node, List<IAVLNode> inOrderNodeList) {
-
-		if (!node.isRealNode()) {
-			return;
-		}
-		this.inOrderList(node.getLeft(), inOrderNodeList);
-		inOrderNodeList.add(node);
-		this.inOrderList(node.getRight(), inOrderNodeList);
-
-	}
 
 	/**
 	 * public String[] infoToArray()
@@ -592,6 +1095,17 @@ public class AVLTree {
 	 * respective keys, or an empty array if the tree is empty.
 	 */
 	public String[] infoToArray() {
+		if (this.latency == null) {
+			return this.collectInfo();
+		}
+		long start = System.nanoTime();
+		String[] result = this.collectInfo();
+		this.latency.getInfoToArray().record(System.nanoTime() - start);
+		return result;
+	}
+
+	// infoToArray without the latency recording
+	private String[] collectInfo() {
 		
 		String[] infoArray = new String[0];
 		
@@ -601,11 +1115,8 @@ public class AVLTree {
 		
 		infoArray = new String[this.getRoot().getSize()];
 
-		List<IAVLNode> inOrderNodeList = new LinkedList<IAVLNode>();
-		this.inOrderList(this.getRoot(), inOrderNodeList);
-
 		int i = 0;
-		for (IAVLNode node : inOrderNodeList) {
+		for (IAVLNode node = firstNode(this.getRoot()); node != null; node = nextNode(node)) {
 			infoArray[i] = node.getValue();
 			i++;
 		}
@@ -613,30 +1124,369 @@ public class AVLTree {
 	}
 
 	/**
-	 * public int size()
+	 * public int[] keysToArrayParallel() / public String[] infoToArrayParallel()
 	 *
-	 * Returns the number of nodes in the tree.
-	 *
-	 * precondition: none postcondition: none
+	 * same as keysToArray / infoToArray, filled by tasks of the common
+	 * ForkJoinPool. the subtree sizes give every subtree its slice of the result
+	 * up front, so each task writes its own part of the array.
 	 */
-	public int size() {
-		if (this.empty()) {
-			return 0;
+	public int[] keysToArrayParallel() {
+		int[] keysArray = new int[this.size()];
+		if (!this.empty()) {
+			ForkJoinPool.commonPool().invoke(new FillTask(this.getRoot(), 0, keysArray, null));
 		}
-		return this.root.getSize();
+		return keysArray;
+	}
+
+	public String[] infoToArrayParallel() {
+		String[] infoArray = new String[this.size()];
+		if (!this.empty()) {
+			ForkJoinPool.commonPool().invoke(new FillTask(this.getRoot(), 0, null, infoArray));
+		}
+		return infoArray;
 	}
 
 	/**
-	 * public int getRoot()
-	 *
-	 * Returns the root AVL node, or null if the tree is empty
+	 * public void forEachInRange(int lo, int hi, IntObjConsumer action)
 	 *
-	 * precondition: none postcondition: none
+	 * calls action with the key and info of every item with lo <= key <= hi, in
+	 * increasing key order. descends once to lo and then walks in order, so the
+	 * complexity is O(log n + m) for m items in the range, with no intermediate
+	 * collection.
+	 */
+	public void forEachInRange(int lo, int hi, IntObjConsumer action) {
+		for (IAVLNode node = this.rangeStart(lo, hi); node != null && node.getKey() <= hi; node = nextNode(node)) {
+			action.accept(node.getKey(), node.getValue());
+		}
+	}
+
+	/**
+	 * public int[] rangeToArray(int lo, int hi)
+	 *
+	 * Returns a sorted array of the keys k in the tree with lo <= k <= hi, or an
+	 * empty array if there are none. Complexity: O(log n + m)
+	 */
+	public int[] rangeToArray(int lo, int hi) {
+		int[] keysArray = new int[this.countRange(lo, hi)];
+		int i = 0;
+		for (IAVLNode node = this.rangeStart(lo, hi); i < keysArray.length; node = nextNode(node)) {
+			keysArray[i] = node.getKey();
+			i++;
+		}
+		return keysArray;
+	}
+
+	// the node with the smallest key >= lo, or null if there is none or lo > hi
+	private IAVLNode rangeStart(int lo, int hi) {
+		if (this.empty() || lo > hi) {
+			return null;
+		}
+		IAVLNode node = this.findPosition(this.getRoot(), lo); // lo itself, or the leaf next to where it would be
+		if (node.getKey() < lo) {
+			node = nextNode(node);
+		}
+		return node;
+	}
+
+	/**
+	 * public Cursor ascending() / descending()
+	 *
+	 * Returns a cursor over all the nodes of the tree, in increasing / decreasing
+	 * key order.
+	 */
+	public Cursor ascending() {
+		return new Cursor(this.empty() ? null : firstNode(this.getRoot()), true);
+	}
+
+	public Cursor descending() {
+		return new Cursor(this.empty() ? null : lastNode(this.getRoot()), false);
+	}
+
+	/**
+	 * public Cursor ascendingFrom(int k)
+	 *
+	 * Returns a cursor in increasing key order, starting at the smallest key >= k.
+	 */
+	public Cursor ascendingFrom(int k) {
+		return new Cursor(this.ceilingNode(k), true);
+	}
+
+	/**
+	 * public Cursor descendingFrom(int k)
+	 *
+	 * Returns a cursor in decreasing key order, starting at the largest key <= k.
+	 */
+	public Cursor descendingFrom(int k) {
+		return new Cursor(this.floorNode(k), false);
+	}
+
+	/**
+	 * public IAVLNode floorNode(int k) / ceilingNode(int k)
+	 *
+	 * Returns the node with the largest key <= k / the smallest key >= k, or null
+	 * if there is none. findPosition stops at k itself or at a node next to where
+	 * k would be, so one in-order step from there finds the answer. O(log n)
+	 */
+	public IAVLNode floorNode(int k) {
+		if (this.empty()) {
+			return null;
+		}
+		IAVLNode node = this.findPosition(this.getRoot(), k);
+		return node.getKey() <= k ? node : prevNode(node);
+	}
+
+	public IAVLNode ceilingNode(int k) {
+		if (this.empty()) {
+			return null;
+		}
+		IAVLNode node = this.findPosition(this.getRoot(), k);
+		return node.getKey() >= k ? node : nextNode(node);
+	}
+
+	/**
+	 * public IAVLNode lowerNode(int k) / higherNode(int k)
+	 *
+	 * Returns the node with the largest key < k / the smallest key > k, or null if
+	 * there is none. O(log n)
+	 */
+	public IAVLNode lowerNode(int k) {
+		if (this.empty()) {
+			return null;
+		}
+		IAVLNode node = this.findPosition(this.getRoot(), k);
+		return node.getKey() < k ? node : prevNode(node);
+	}
+
+	public IAVLNode higherNode(int k) {
+		if (this.empty()) {
+			return null;
+		}
+		IAVLNode node = this.findPosition(this.getRoot(), k);
+		return node.getKey() > k ? node : nextNode(node);
+	}
+
+	/**
+	 * public IAVLNode nodeAfter(IAVLNode node) / nodeBefore(IAVLNode node)
+	 *
+	 * Returns the node after / before node in key order, or null if node is the
+	 * max / min. walks the parent pointers, amortized O(1) over a scan.
+	 */
+	public IAVLNode nodeAfter(IAVLNode node) {
+		return nextNode(node);
+	}
+
+	public IAVLNode nodeBefore(IAVLNode node) {
+		return prevNode(node);
+	}
+
+	// the node with the smallest key in node's subtree
+	private static IAVLNode firstNode(IAVLNode node) {
+		while (node.getLeft().isRealNode()) {
+			node = node.getLeft();
+		}
+		return node;
+	}
+
+	// the node with the largest key in node's subtree
+	private static IAVLNode lastNode(IAVLNode node) {
+		while (node.getRight().isRealNode()) {
+			node = node.getRight();
+		}
+		return node;
+	}
+
+	// the in-order successor of node, found through the parent pointers, or null
+	private static IAVLNode nextNode(IAVLNode node) {
+		if (node.getRight().isRealNode()) {
+			return firstNode(node.getRight());
+		}
+		IAVLNode parent = node.getParent();
+		while (parent != null && parent.getRight() == node) {
+			node = parent;
+			parent = node.getParent();
+		}
+		return parent;
+	}
+
+	// the in-order predecessor of node, or null
+	private static IAVLNode prevNode(IAVLNode node) {
+		if (node.getLeft().isRealNode()) {
+			return lastNode(node.getLeft());
+		}
+		IAVLNode parent = node.getParent();
+		while (parent != null && parent.getLeft() == node) {
+			node = parent;
+			parent = node.getParent();
+		}
+		return parent;
+	}
+
+	/**
+	 * public int size()
+	 *
+	 * Returns the number of nodes in the tree.
+	 *
+	 * precondition: none postcondition: none
+	 */
+	public int size() {
+		if (this.empty()) {
+			return 0;
+		}
+		return this.root.getSize();
+	}
+
+	/**
+	 * public int getRoot()
+	 *
+	 * Returns the root AVL node, or null if the tree is empty
+	 *
+	 * precondition: none postcondition: none
 	 */
 	public IAVLNode getRoot() {
 		return this.root;
 	}
 
+	/**
+	 * public int select(int i)
+	 *
+	 * Returns the i'th smallest key in the tree (the key at keysToArray()[i]),
+	 * using the subtree sizes. Complexity: O(log n)
+	 *
+	 * precondition: 0 <= i < size()
+	 */
+	public int select(int i) {
+		if (i < 0 || i >= this.size()) {
+			throw new IndexOutOfBoundsException("index: " + i + ", size: " + this.size());
+		}
+		IAVLNode node = this.getRoot();
+		while (true) {
+			int leftSize = node.getLeft().getSize();
+			if (i < leftSize) {
+				node = node.getLeft();
+			} else if (i == leftSize) {
+				return node.getKey();
+			} else {
+				i -= leftSize + 1; // skip the left subtree and the node itself
+				node = node.getRight();
+			}
+		}
+	}
+
+	/**
+	 * public AVLTreeShape shapeStats()
+	 *
+	 * walks the whole tree and reports its shape (see AVLTreeShape): the height
+	 * against log2(n+1), the mean and max node depth, how many nodes are 1,1 /
+	 * 1,2 / 2,1, and how many have a height, size or rank that disagrees with
+	 * their children. O(n)
+	 */
+	public AVLTreeShape shapeStats() {
+		return this.shapeWindow(this.empty() ? null : firstNode(this.getRoot()), Integer.MAX_VALUE);
+	}
+
+	/**
+	 * public AVLTreeShape shapeStats(int fromKey, int maxNodes)
+	 *
+	 * the same for at most maxNodes nodes, in key order from the smallest key >=
+	 * fromKey, in O(maxNodes + log n). if the result hasMore(), the next window
+	 * starts at its getNextKey(), and AVLTreeShape.merge() adds the windows up.
+	 * the tree may change between windows.
+	 */
+	public AVLTreeShape shapeStats(int fromKey, int maxNodes) {
+		return this.shapeWindow(this.ceilingNode(fromKey), maxNodes);
+	}
+
+	/**
+	 * public AVLTreeShape sampleShapeStats(int maxNodes, Random random)
+	 *
+	 * shapeStats(fromKey, maxNodes) from a key picked uniformly at random, for a
+	 * cheap look at part of a large tree
+	 */
+	public AVLTreeShape sampleShapeStats(int maxNodes, Random random) {
+		if (this.empty()) {
+			return this.shapeWindow(null, maxNodes);
+		}
+		return this.shapeStats(this.select(random.nextInt(this.size())), maxNodes);
+	}
+
+	// adds up to maxNodes nodes from node on, in order, keeping track of their depth
+	private AVLTreeShape shapeWindow(IAVLNode node, int maxNodes) {
+		if (this.empty()) {
+			return new AVLTreeShape(0, -1);
+		}
+		AVLTreeShape shape = new AVLTreeShape(this.size(), this.getRoot().getHeight());
+		int depth = node == null ? 0 : depth(node);
+		for (int i = 0; i < maxNodes && node != null; i++) {
+			shape.add(node, depth);
+			if (node.getRight().isRealNode()) { // the successor is the leftmost node of the right subtree
+				node = node.getRight();
+				depth++;
+				while (node.getLeft().isRealNode()) {
+					node = node.getLeft();
+					depth++;
+				}
+			} else { // or the first ancestor we reach from its left
+				IAVLNode parent = node.getParent();
+				depth--;
+				while (parent != null && parent.getRight() == node) {
+					node = parent;
+					parent = node.getParent();
+					depth--;
+				}
+				node = parent;
+			}
+		}
+		if (node != null) {
+			shape.setNext(true, node.getKey());
+		}
+		return shape;
+	}
+
+	/**
+	 * public int rank(int k)
+	 *
+	 * Returns the number of keys in the tree that are smaller than k. if k is in
+	 * the tree this is its index in keysToArray(), so select(rank(k)) == k.
+	 * Complexity: O(log n)
+	 */
+	public int rank(int k) {
+		return this.countSmaller(k, false);
+	}
+
+	/**
+	 * public int countRange(int lo, int hi)
+	 *
+	 * Returns the number of keys k in the tree with lo <= k <= hi, or 0 if lo >
+	 * hi. Complexity: O(log n)
+	 */
+	public int countRange(int lo, int hi) {
+		if (lo > hi) {
+			return 0;
+		}
+		return this.countSmaller(hi, true) - this.countSmaller(lo, false);
+	}
+
+	// number of keys < k, or <= k if inclusive
+	private int countSmaller(int k, boolean inclusive) {
+		if (this.empty()) {
+			return 0;
+		}
+		int count = 0;
+		IAVLNode node = this.getRoot();
+		while (node.isRealNode()) {
+			if (k < node.getKey() || (k == node.getKey() && !inclusive)) {
+				node = node.getLeft();
+			} else {
+				count += node.getLeft().getSize() + 1; // the left subtree and the node are all <= k
+				if (k == node.getKey()) {
+					return count;
+				}
+				node = node.getRight();
+			}
+		}
+		return count;
+	}
+
 	// returns the height of the tree, 0 if it's empty
 	public int getHeight() {
 		if (this.empty()) {
@@ -649,70 +1499,46 @@ public class AVLTree {
 	 * public string split(int x)
 	 *
 	 * splits the tree into 2 trees according to the key x. Returns an array [t1,
-	 * t2] with two AVL trees. keys(t1) < x < keys(t2). precondition: search(x) !=
-	 * null (i.e. you can also assume that the tree is not empty) postcondition:
-	 * none
+	 * t2] with two AVL trees. keys(t1) < x < keys(t2). the nodes are relinked,
+	 * not copied: each ancestor of x joins the side it belongs to (splitNodes),
+	 * so besides the two result trees split allocates only O(1) and takes
+	 * O(log n). min/max and sizes are correct on both sides, and this tree is
+	 * left empty. if x is not in the tree the items are split all the same.
+	 * postcondition: none
 	 */
 	public AVLTree[] split(int x) {
-		IAVLNode xNode = findPosition(this.getRoot(),x);
-		return this.split(x, xNode);
+		if (this.latency == null) {
+			return this.splitTree(x);
+		}
+		long start = System.nanoTime();
+		AVLTree[] result = this.splitTree(x);
+		this.latency.getSplit().record(System.nanoTime() - start);
+		return result;
 	}
-	
-	private AVLTree[] split(int x, IAVLNode node) {
-		IAVLNode pNode = node;
-		AVLTree[] result = new AVLTree[2];
 
+	// split without the latency recording
+	private AVLTree[] splitTree(int x) {
+		AVLTree[] result = new AVLTree[2];
 		result[0] = new AVLTree();	//smaller than x
 		result[1] = new AVLTree();	//bigger than x
-		
-		//set x's right and left subtrees as the base of the 2 new trees
-		if(node.getLeft().isRealNode()) {
-			result[0].root = node.getLeft();
+		if (this.empty()) {
+			return result;
 		}
-		if(node.getRight().isRealNode()) {
-			result[1].root = node.getRight();
+		IAVLNode[] parts = this.splitNodes(this.getRoot(), x);
+		if (this.metrics != null) {
+			this.metrics.split(this.splitSteps); // every ancestor of x is joined
 		}
-		pNode = node.getParent();
-		
-		//disconnect x's children + parent
-		disconnectNode(node);
-		
-		while(pNode != null) {
-			IAVLNode duplicatePNode = new AVLNode(pNode.getKey(), pNode.getValue());
-			
-			//adding to the smaller tree
-			if(pNode.getKey() < x) {
-				AVLTree smaller = new AVLTree();
-				if(pNode.getLeft().isRealNode()) {
-					smaller.root = pNode.getLeft();
-					smaller.root.setParent(null);
-				}
-				result[0].join(duplicatePNode, smaller);
-				
-			}else {
-				//adding to the bigger tree
-				AVLTree bigger = new AVLTree();
-				if(pNode.getRight().isRealNode()) {
-					bigger.root = pNode.getRight();
-					bigger.root.setParent(null);
-				}
-				result[1].join(duplicatePNode, bigger);
-			}
-			
-			pNode = pNode.getParent();
-			}
-		
+		result[0].setRootNode(parts[0]);
+		result[1].setRootNode(parts[2]);
+		this.setRootNode(VIRTUAL_LEAF);
 		return result;
-		
-	}	
-	
-	private void disconnectNode(IAVLNode node){
-		node.getLeft().setParent(null);
-		node.getRight().setParent(null);
-		node.setLeft(new AVLNode());
-		node.setRight(new AVLNode());
-		node.setParent(null);
-		
+	}
+
+	// sets child's parent, unless child is the shared virtual leaf
+	private static void linkParent(IAVLNode child, IAVLNode parent) {
+		if (child.isRealNode()) {
+			child.setParent(parent);
+		}
 	}
 	/**
 	 * public join(IAVLNode x, AVLTree t)
@@ -722,17 +1548,32 @@ public class AVLTree {
 	 * keys(). t/tree might be empty (rank = -1). postcondition: none
 	 */
 	public int join(IAVLNode x, AVLTree t) {
+		long start = this.latency == null ? 0 : System.nanoTime();
+		int cost = this.joinTrees(x, t);
+		if (this.latency != null) {
+			this.latency.getJoin().record(System.nanoTime() - start);
+		}
+		if (this.metrics != null) {
+			this.metrics.join(cost);
+		}
+		return cost;
+	}
+
+	// join without the metrics and latency recording
+	private int joinTrees(IAVLNode x, AVLTree t) {
 	int valtoreturn = Math.abs(this.getHeight()-t.getHeight()) +1;
+	this.finger = null;
+	t.finger = null;
 	
 	if (t.empty() && this.empty()) {
 		this.max = x;
 		this.min = x;
-		this.insert(x.getKey(), x.getValue());
+		this.insertItem(x.getKey(), x.getValue());
 		return valtoreturn;
 	}
 	else if (t.empty()||!t.root.isRealNode()) {
 		// t is empty. we can just insert x to this
-		this.insert(x.getKey(), x.getValue());
+		this.insertItem(x.getKey(), x.getValue());
 		return valtoreturn;
 	
 	}else if (this.empty()) {
@@ -740,7 +1581,7 @@ public class AVLTree {
 		this.root = t.root;
 		this.max = t.max;
 		this.min = t.min;
-		this.insert(x.getKey(), x.getValue());
+		this.insertItem(x.getKey(), x.getValue());
 		return valtoreturn;
 	}
 	// t && tree are not empty
@@ -759,22 +1600,25 @@ public class AVLTree {
 	int heightdiff = Rtree.getRoot().getHeight() - Ltree.getRoot().getHeight();
 	if (heightdiff <= 1 && heightdiff >= -1) {
 		//trees are equal in height
+		x.setParent(null);
 		x.setRight(Rtree.getRoot());
 		x.setLeft(Ltree.getRoot());
+		x.getRight().setParent(x);
+		x.getLeft().setParent(x);
 		this.root=x;
 		x.update();
+		x.calcRank();
 		this.max = Rtree.max;
 		this.min = Ltree.min;
 		return 1;
 		
 	}else if (heightdiff > 0) {
 		//Rtree is taller than Ltree
-		IAVLNode temp = null;
-		temp = Rtree.root; 
+		IAVLNode temp = Rtree.root;
+		IAVLNode tempParent = null; // temp may be the virtual leaf, which has no parent
 		while (temp.getHeight()>Ltree.getRoot().getHeight()) {
-//			if (temp.getLeft().isRealNode()) {
-				temp = temp.getLeft();
-//			}			
+			tempParent = temp;
+			temp = temp.getLeft();
 		}
 		
 		/* set x to be:
@@ -785,13 +1629,13 @@ public class AVLTree {
 		 * Ltree.root     temp
 		 */
 
-		x.setParent(temp.getParent());
+		x.setParent(tempParent);
 		x.setLeft(Ltree.getRoot());
 		x.getLeft().setParent(x);
 		x.setRight(temp);
-		x.getRight().setParent(x);
-		if (x.getParent()!=null) {
-			x.getParent().setLeft(x);}
+		linkParent(temp, x);
+		if (tempParent!=null) {
+			tempParent.setLeft(x);}
 		this.root = Rtree.getRoot();
 		x.calcRank();
 		this.rebalance(x);
@@ -800,13 +1644,12 @@ public class AVLTree {
 		
 	}else if(heightdiff < 0){
 		//Ltree is taller than Rtree
-		IAVLNode temp = null;
-		temp = Ltree.root;
+		IAVLNode temp = Ltree.root;
+		IAVLNode tempParent = null;
 
 		while (temp.getHeight()>Rtree.getRoot().getHeight()) {
-//			if (temp.getRight().isRealNode()) {
-				temp = temp.getRight();
-//			}
+			tempParent = temp;
+			temp = temp.getRight();
 		}
 		/* set x to be:
 		 * temp.parent
@@ -815,13 +1658,13 @@ public class AVLTree {
 		 *      /   \
 		 *  temp      Rtree.root
 		 */
-		x.setParent(temp.getParent());
+		x.setParent(tempParent);
 		x.setRight(Rtree.getRoot());
 		x.setLeft(temp);
 		x.getRight().setParent(x);
-		x.getLeft().setParent(x);
-		if (x.getParent()!=null) {
-			x.getParent().setRight(x);}
+		linkParent(temp, x);
+		if (tempParent!=null) {
+			tempParent.setRight(x);}
 		this.root = Ltree.getRoot();
 		x.calcRank();
 		this.rebalance(x);
@@ -832,6 +1675,354 @@ public class AVLTree {
 	this.min = Ltree.min;
 	return valtoreturn;
 }
+
+	/**
+	 * public int insertAll(int[] keys, String[] values)
+	 *
+	 * inserts the items (keys[i], values[i]) to the tree. keys that are already in
+	 * the tree, or repeat in the batch, keep their first info, like insert. the
+	 * batch is sorted and merged into the tree with splits and joins, in
+	 * O(m log(n/m + 1)) for a batch of m keys. returns the number of items that
+	 * were added.
+	 *
+	 * precondition: keys.length == values.length and no key is -1
+	 */
+	public int insertAll(int[] keys, String[] values) {
+		if (keys.length != values.length) {
+			throw new IllegalArgumentException("got " + keys.length + " keys and " + values.length + " values");
+		}
+		int[] order = sortedDistinct(keys);
+		int[] sortedKeys = new int[order.length];
+		String[] sortedValues = new String[order.length];
+		for (int i = 0; i < order.length; i++) {
+			sortedKeys[i] = keys[order[i]];
+			sortedValues[i] = values[order[i]];
+			if (sortedKeys[i] == -1) {
+				throw new IllegalArgumentException("key -1 is reserved for virtual nodes");
+			}
+		}
+
+		int before = this.size();
+		IAVLNode root = this.empty() ? VIRTUAL_LEAF : this.getRoot();
+		this.setRootNode(this.unionRange(root, sortedKeys, sortedValues, 0, sortedKeys.length - 1));
+		return this.size() - before;
+	}
+
+	/**
+	 * public int deleteAll(int[] keys)
+	 *
+	 * deletes the items with the given keys from the tree, ignoring keys that are
+	 * not in it. like insertAll, works by splits and joins in O(m log(n/m + 1)).
+	 * returns the number of items that were deleted.
+	 */
+	public int deleteAll(int[] keys) {
+		int[] order = sortedDistinct(keys);
+		int[] sortedKeys = new int[order.length];
+		for (int i = 0; i < order.length; i++) {
+			sortedKeys[i] = keys[order[i]];
+		}
+
+		int before = this.size();
+		if (!this.empty()) {
+			this.setRootNode(this.differenceRange(this.getRoot(), sortedKeys, 0, sortedKeys.length - 1));
+		}
+		return before - this.size();
+	}
+
+	/**
+	 * public void clear()
+	 *
+	 * deletes every item of the tree in O(1): the nodes are dropped, not
+	 * deleted one by one.
+	 */
+	public void clear() {
+		this.root = null;
+		this.finger = null;
+		this.updatemin();
+		this.updatemax();
+	}
+
+	/**
+	 * public void union(AVLTree t, InfoMerger merger)
+	 *
+	 * adds every item of t to the tree. for a key in both trees the info becomes
+	 * merger.merge(key, info here, info in t), or stays as is if merger is null.
+	 * nodes are moved, not copied, so t is left empty. O(m log(n/m + 1)) for
+	 * m <= n items in the smaller tree.
+	 */
+	public void union(AVLTree t, InfoMerger merger) {
+		this.checkOther(t);
+		IAVLNode other = t.empty() ? VIRTUAL_LEAF : t.getRoot();
+		t.root = null;
+		t.finger = null;
+		t.updatemin();
+		t.updatemax();
+		this.setRootNode(this.unionNodes(this.empty() ? VIRTUAL_LEAF : this.getRoot(), other, merger));
+	}
+
+	/**
+	 * public void intersection(AVLTree t, InfoMerger merger)
+	 *
+	 * keeps only the keys that are also in t. their info becomes
+	 * merger.merge(key, info here, info in t), or stays as is if merger is null.
+	 * t is left empty. O(m log(n/m + 1))
+	 */
+	public void intersection(AVLTree t, InfoMerger merger) {
+		this.checkOther(t);
+		IAVLNode other = t.empty() ? VIRTUAL_LEAF : t.getRoot();
+		t.root = null;
+		t.finger = null;
+		t.updatemin();
+		t.updatemax();
+		this.setRootNode(this.intersectionNodes(this.empty() ? VIRTUAL_LEAF : this.getRoot(), other, merger));
+	}
+
+	/**
+	 * public void difference(AVLTree t)
+	 *
+	 * deletes every key of t from the tree. t is only read and stays as it is.
+	 * O(m log(n/m + 1))
+	 */
+	public void difference(AVLTree t) {
+		this.checkOther(t);
+		if (!this.empty() && !t.empty()) {
+			this.setRootNode(this.differenceNodes(this.getRoot(), t.getRoot()));
+		}
+	}
+
+	private void checkOther(AVLTree t) {
+		if (t == this) {
+			throw new IllegalArgumentException("cannot combine a tree with itself");
+		}
+	}
+
+	// the union of the detached subtrees a and b, made of their nodes
+	private IAVLNode unionNodes(IAVLNode a, IAVLNode b, InfoMerger merger) {
+		if (!b.isRealNode()) {
+			return a;
+		}
+		if (!a.isRealNode()) {
+			return b;
+		}
+		IAVLNode bLeft = detach(b.getLeft());
+		IAVLNode bRight = detach(b.getRight());
+		IAVLNode[] parts = this.splitNodes(a, b.getKey());
+		IAVLNode left = this.unionNodes(parts[0], bLeft, merger);
+		IAVLNode right = this.unionNodes(parts[2], bRight, merger);
+		IAVLNode x = parts[1] != null ? parts[1] : b;
+		if (parts[1] != null && merger != null) {
+			((AVLNode) x).val = merger.merge(x.getKey(), x.getValue(), b.getValue());
+		}
+		return this.joinNodes(left, x, right);
+	}
+
+	// the nodes of a whose keys are also in b
+	private IAVLNode intersectionNodes(IAVLNode a, IAVLNode b, InfoMerger merger) {
+		if (!a.isRealNode() || !b.isRealNode()) {
+			return VIRTUAL_LEAF;
+		}
+		IAVLNode bLeft = detach(b.getLeft());
+		IAVLNode bRight = detach(b.getRight());
+		IAVLNode[] parts = this.splitNodes(a, b.getKey());
+		IAVLNode left = this.intersectionNodes(parts[0], bLeft, merger);
+		IAVLNode right = this.intersectionNodes(parts[2], bRight, merger);
+		if (parts[1] == null) {
+			return this.joinNodes(left, right);
+		}
+		IAVLNode x = parts[1];
+		if (merger != null) {
+			((AVLNode) x).val = merger.merge(x.getKey(), x.getValue(), b.getValue());
+		}
+		return this.joinNodes(left, x, right);
+	}
+
+	// the nodes of a whose keys are not in b. b is only read
+	private IAVLNode differenceNodes(IAVLNode a, IAVLNode b) {
+		if (!a.isRealNode() || !b.isRealNode()) {
+			return a;
+		}
+		IAVLNode[] parts = this.splitNodes(a, b.getKey());
+		IAVLNode left = this.differenceNodes(parts[0], b.getLeft());
+		IAVLNode right = this.differenceNodes(parts[2], b.getRight());
+		return this.joinNodes(left, right);
+	}
+
+	// the subtree t with the items from..to added. items of t win over the batch
+	private IAVLNode unionRange(IAVLNode t, int[] keys, String[] values, int from, int to) {
+		if (from > to) {
+			return t;
+		}
+		if (!t.isRealNode()) {
+			return this.buildBalanced(keys, values, from, to, null);
+		}
+		int mid = (from + to) >>> 1;
+		IAVLNode[] parts = this.splitNodes(t, keys[mid]);
+		IAVLNode left = this.unionRange(parts[0], keys, values, from, mid - 1);
+		IAVLNode right = this.unionRange(parts[2], keys, values, mid + 1, to);
+		IAVLNode x = parts[1] != null ? parts[1] : new AVLNode(keys[mid], values[mid]);
+		return this.joinNodes(left, x, right);
+	}
+
+	// the subtree t without the keys from..to
+	private IAVLNode differenceRange(IAVLNode t, int[] keys, int from, int to) {
+		if (from > to || !t.isRealNode()) {
+			return t;
+		}
+		int mid = (from + to) >>> 1;
+		IAVLNode[] parts = this.splitNodes(t, keys[mid]);
+		IAVLNode left = this.differenceRange(parts[0], keys, from, mid - 1);
+		IAVLNode right = this.differenceRange(parts[2], keys, mid + 1, to);
+		return this.joinNodes(left, right);
+	}
+
+	/**
+	 * private IAVLNode[] splitNodes(IAVLNode t, int k)
+	 *
+	 * splits the detached subtree t by k, reusing its nodes. returns {smaller,
+	 * match, bigger}: the roots of the subtrees of the keys < k and > k (the
+	 * virtual leaf if empty), and the detached node with key k, or null if there
+	 * is none. O(log n)
+	 */
+	private IAVLNode[] splitNodes(IAVLNode t, int k) {
+		IAVLNode smaller = VIRTUAL_LEAF;
+		IAVLNode bigger = VIRTUAL_LEAF;
+		IAVLNode match = null;
+
+		IAVLNode pNode = t.isRealNode() ? this.findPosition(t, k) : null;
+		if (pNode != null && pNode.getKey() == k) {
+			match = pNode;
+			pNode = match.getParent();
+			smaller = detach(match.getLeft());
+			bigger = detach(match.getRight());
+			match.setLeft(VIRTUAL_LEAF);
+			match.setRight(VIRTUAL_LEAF);
+			match.setParent(null);
+			match.update();
+			match.calcRank();
+		}
+
+		// every ancestor joins the side of k it is on, with its other subtree
+		int joins = 0;
+		while (pNode != null) {
+			IAVLNode next = pNode.getParent();
+			if (pNode.getKey() < k) {
+				smaller = this.joinNodes(detach(pNode.getLeft()), pNode, smaller);
+			} else {
+				bigger = this.joinNodes(bigger, pNode, detach(pNode.getRight()));
+			}
+			pNode = next;
+			joins++;
+		}
+		this.splitSteps = joins;
+		return new IAVLNode[] { smaller, match, bigger };
+	}
+
+	/**
+	 * private IAVLNode joinNodes(IAVLNode l, IAVLNode x, IAVLNode r)
+	 *
+	 * joins the detached subtrees l and r (either may be the virtual leaf) through
+	 * the node x, where keys(l) < x < keys(r), and returns the root of the result.
+	 * O(|l.height - r.height| + 1). rotations at the top of the result set
+	 * this.root, so callers set the root afterwards.
+	 */
+	private IAVLNode joinNodes(IAVLNode l, IAVLNode x, IAVLNode r) {
+		int heightdiff = r.getHeight() - l.getHeight();
+		if (heightdiff <= 1 && heightdiff >= -1) {
+			x.setLeft(l);
+			x.setRight(r);
+			linkParent(l, x);
+			linkParent(r, x);
+			x.setParent(null);
+			x.update();
+			x.calcRank();
+			return x;
+		}
+
+		IAVLNode temp;
+		IAVLNode tempParent = null;
+		if (heightdiff > 0) { // r is taller: hang x on r's left spine
+			temp = r;
+			while (temp.getHeight() > l.getHeight() + 1) {
+				tempParent = temp;
+				temp = temp.getLeft();
+			}
+			x.setLeft(l);
+			x.setRight(temp);
+			linkParent(l, x);
+			tempParent.setLeft(x);
+		} else { // l is taller: hang x on l's right spine
+			temp = l;
+			while (temp.getHeight() > r.getHeight() + 1) {
+				tempParent = temp;
+				temp = temp.getRight();
+			}
+			x.setRight(r);
+			x.setLeft(temp);
+			linkParent(r, x);
+			tempParent.setRight(x);
+		}
+		linkParent(temp, x);
+		x.setParent(tempParent);
+		x.update();
+		x.calcRank();
+		this.rebalance(x);
+		x.updatePath();
+
+		IAVLNode top = x;
+		while (top.getParent() != null) {
+			top = top.getParent();
+		}
+		return top;
+	}
+
+	// joins the detached subtrees l and r, keys(l) < keys(r), using r's min node as the middle
+	private IAVLNode joinNodes(IAVLNode l, IAVLNode r) {
+		if (!r.isRealNode()) {
+			return l;
+		}
+		if (!l.isRealNode()) {
+			return r;
+		}
+		IAVLNode[] parts = this.splitNodes(r, firstNode(r).getKey());
+		return this.joinNodes(l, parts[1], parts[2]);
+	}
+
+	// cuts node off its parent so it can be the root of a subtree
+	private static IAVLNode detach(IAVLNode node) {
+		linkParent(node, null);
+		return node;
+	}
+
+	// makes node (a detached subtree root, or the virtual leaf) the root of this tree
+	private void setRootNode(IAVLNode node) {
+		this.finger = null;
+		if (node.isRealNode()) {
+			node.setParent(null);
+			this.root = node;
+		} else {
+			this.root = null;
+		}
+		this.updatemin();
+		this.updatemax();
+	}
+
+	// the indexes of the distinct keys, in increasing key order (first occurrence of a repeated key)
+	private static int[] sortedDistinct(int[] keys) {
+		long[] packed = new long[keys.length];
+		for (int i = 0; i < keys.length; i++) {
+			packed[i] = ((long) keys[i] << 32) | i; // sorts by key, then by index
+		}
+		Arrays.sort(packed);
+		int[] order = new int[keys.length];
+		int n = 0;
+		for (long p : packed) {
+			int i = (int) p;
+			if (n == 0 || keys[order[n - 1]] != keys[i]) {
+				order[n++] = i;
+			}
+		}
+		return Arrays.copyOf(order, n);
+	}
 		
 
 
@@ -854,7 +2045,7 @@ public class AVLTree {
 
 		// rotate
 		node.setLeft(leftNode.getRight());
-		leftNode.getRight().setParent(node);
+		linkParent(leftNode.getRight(), node);
 		leftNode.setRight(node);
 		node.setParent(leftNode);
 
@@ -883,7 +2074,7 @@ public class AVLTree {
 
 		// rotate
 		node.setRight(rightNode.getLeft());
-		rightNode.getLeft().setParent(node);
+		linkParent(rightNode.getLeft(), node);
 		rightNode.setLeft(node);
 		node.setParent(rightNode);
 
@@ -910,6 +2101,24 @@ public class AVLTree {
 		return tmp; // return a leaf or null if tree is empty
 	}
 
+	/**
+	 * public interface IntObjConsumer
+	 *
+	 * receives the key and info of an item, without boxing the key
+	 */
+	public interface IntObjConsumer {
+		public void accept(int key, String info);
+	}
+
+	/**
+	 * public interface InfoMerger
+	 *
+	 * picks the info of a key that is in both trees of a union or intersection
+	 */
+	public interface InfoMerger {
+		public String merge(int key, String mine, String theirs);
+	}
+
 	/**
 	 * public interface IAVLNode ! Do not delete or modify this - otherwise all
 	 * tests will fail !
@@ -958,8 +2167,8 @@ public class AVLTree {
 		public AVLNode(int Key, String Val) {
 			this.key = Key;
 			this.val = Val;
-			this.left = new AVLNode();
-			this.right = new AVLNode();
+			this.left = VIRTUAL_LEAF;
+			this.right = VIRTUAL_LEAF;
 			this.height = 0;
 			this.size = 1;
 			this.rank = 0;
@@ -983,6 +2192,11 @@ public class AVLTree {
 			return this.val; // returns value
 		}
 
+		// replaces the node's value [info], keeping its key and place in the tree
+		public void setValue(String value) {
+			this.val = value;
+		}
+
 		public void setLeft(IAVLNode node) {
 			this.left = (AVLNode) node; // to be replaced by student code
 		}
@@ -1085,4 +2299,179 @@ public class AVLTree {
 
 	}
 
+	/**
+	 * private static class FillTask
+	 *
+	 * writes the keys and/or info of a subtree, in order, starting at offset.
+	 * small subtrees are walked sequentially, larger ones are split at the root.
+	 */
+	private static class FillTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final IAVLNode node;
+		private final int offset;
+		private final int[] keys; // may be null
+		private final String[] info; // may be null
+
+		private FillTask(IAVLNode node, int offset, int[] keys, String[] info) {
+			this.node = node;
+			this.offset = offset;
+			this.keys = keys;
+			this.info = info;
+		}
+
+		protected void compute() {
+			if (this.node.getSize() <= PARALLEL_THRESHOLD) {
+				// the first size() nodes from the subtree's min are exactly the subtree
+				IAVLNode curr = firstNode(this.node);
+				for (int i = this.offset; i < this.offset + this.node.getSize(); i++) {
+					this.fill(i, curr);
+					curr = nextNode(curr);
+				}
+				return;
+			}
+			int nodeIndex = this.offset + this.node.getLeft().getSize();
+			this.fill(nodeIndex, this.node);
+			invokeAll(new FillTask(this.node.getLeft(), this.offset, this.keys, this.info),
+					new FillTask(this.node.getRight(), nodeIndex + 1, this.keys, this.info));
+		}
+
+		private void fill(int i, IAVLNode curr) {
+			if (this.keys != null) {
+				this.keys[i] = curr.getKey();
+			}
+			if (this.info != null) {
+				this.info[i] = curr.getValue();
+			}
+		}
+	}
+
+	/**
+	 * private class BuildTask
+	 *
+	 * buildBalanced as a fork/join task: the middle node is made here and the two
+	 * halves are built in parallel, down to PARALLEL_THRESHOLD items.
+	 */
+	private class BuildTask extends RecursiveTask<IAVLNode> {
+		private static final long serialVersionUID = 1L;
+
+		private final int[] keys;
+		private final String[] values;
+		private final int from;
+		private final int to;
+		private final IAVLNode parent;
+
+		private BuildTask(int[] keys, String[] values, int from, int to, IAVLNode parent) {
+			this.keys = keys;
+			this.values = values;
+			this.from = from;
+			this.to = to;
+			this.parent = parent;
+		}
+
+		protected IAVLNode compute() {
+			if (this.to - this.from < PARALLEL_THRESHOLD) {
+				return buildBalanced(this.keys, this.values, this.from, this.to, this.parent);
+			}
+			int mid = (this.from + this.to) >>> 1;
+			IAVLNode node = new AVLNode(this.keys[mid], this.values[mid]);
+			node.setParent(this.parent);
+			BuildTask left = new BuildTask(this.keys, this.values, this.from, mid - 1, node);
+			left.fork();
+			node.setRight(new BuildTask(this.keys, this.values, mid + 1, this.to, node).compute());
+			node.setLeft(left.join());
+			node.update();
+			node.calcRank();
+			return node;
+		}
+	}
+
+	/**
+	 * public class Cursor
+	 *
+	 * An in-order walk over the nodes of the tree that moves through the parent
+	 * pointers, so a step allocates nothing and the walk needs no stack. The
+	 * tree must not be modified while a cursor is in use.
+	 */
+	public class Cursor implements Iterator<IAVLNode> {
+		private IAVLNode next;
+		private final boolean ascending;
+
+		private Cursor(IAVLNode first, boolean ascending) {
+			this.next = first;
+			this.ascending = ascending;
+		}
+
+		public boolean hasNext() {
+			return this.next != null;
+		}
+
+		// returns the current node and moves to the next one
+		public IAVLNode next() {
+			IAVLNode node = this.next;
+			if (node == null) {
+				throw new NoSuchElementException();
+			}
+			this.next = this.ascending ? nextNode(node) : prevNode(node);
+			return node;
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException("remove");
+		}
+	}
+
+	/**
+	 * private class VirtualNode
+	 *
+	 * the type of VIRTUAL_LEAF. every mutator throws, so a code path that would
+	 * write to the shared leaf fails loudly instead of corrupting other trees.
+	 */
+	private class VirtualNode extends AVLNode {
+
+		public void setLeft(IAVLNode node) {
+			throw new UnsupportedOperationException("virtual leaf is immutable");
+		}
+
+		public void setRight(IAVLNode node) {
+			throw new UnsupportedOperationException("virtual leaf is immutable");
+		}
+
+		public void setValue(String value) {
+			throw new UnsupportedOperationException("virtual leaf is immutable");
+		}
+
+		public void setParent(IAVLNode node) {
+			throw new UnsupportedOperationException("virtual leaf is immutable");
+		}
+
+		public void setHeight(int height) {
+			throw new UnsupportedOperationException("virtual leaf is immutable");
+		}
+
+		public void setSize(int i) {
+			throw new UnsupportedOperationException("virtual leaf is immutable");
+		}
+
+		public void promote() {
+			throw new UnsupportedOperationException("virtual leaf is immutable");
+		}
+
+		public void demote() {
+			throw new UnsupportedOperationException("virtual leaf is immutable");
+		}
+
+		public void calcRank() {
+			throw new UnsupportedOperationException("virtual leaf is immutable");
+		}
+
+		public void update() {
+			throw new UnsupportedOperationException("virtual leaf is immutable");
+		}
+
+		public void updatePath() {
+			throw new UnsupportedOperationException("virtual leaf is immutable");
+		}
+	}
+
 }
@@ -0,0 +1,457 @@
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import src.MeasureAVL;
+
+/**
+ *
+ * AVLTreeBenchmark
+ *
+ * Benchmark suite for AVLTree, with MeasureAVL, java.util.TreeMap and
+ * ConcurrentSkipListMap as baselines. Every benchmark is run for every
+ * structure that supports it, every key order and every size, and reports:
+ *
+ *   ns/elem  - wall time per processed key (per call for split/join)
+ *   B/elem   - bytes allocated per processed key, measured per thread
+ *   gc       - collections during the measured iterations
+ *
+ * The harness is plain JDK (warmup iterations, then measured iterations, with
+ * setup kept out of the timed region) so it runs from the same source folder
+ * as the trees, without a build system.
+ *
+ * usage: java AVLTreeBenchmark [-sizes 1000,100000] [-orders sorted,zipf]
+ *                              [-ops insert,search] [-structures AVLTree,TreeMap]
+ *
+ */
+public class AVLTreeBenchmark {
+
+	static final String[] ORDERS = { "sorted", "reverse", "local", "shuffled", "zipf" };
+	static final int LOCAL_WINDOW = 64;
+	static final int[] SIZES = { 1000, 10000, 100000, 1000000, 10000000 };
+
+	private static final com.sun.management.ThreadMXBean THREADS = threadBean();
+	private static long blackhole;
+
+	public static void main(String[] args) {
+		int[] sizes = SIZES;
+		List<String> orders = Arrays.asList(ORDERS);
+		List<String> ops = null;
+		List<String> structures = null;
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			List<String> values = Arrays.asList(args[i + 1].split(","));
+			if (args[i].equals("-sizes")) {
+				sizes = new int[values.size()];
+				for (int j = 0; j < sizes.length; j++) {
+					sizes[j] = (int) Double.parseDouble(values.get(j)); // allows 1e6
+				}
+			} else if (args[i].equals("-orders")) {
+				orders = values;
+			} else if (args[i].equals("-ops")) {
+				ops = values;
+			} else if (args[i].equals("-structures")) {
+				structures = values;
+			}
+		}
+
+		System.out.printf("%-12s %-9s %9s %-22s %12s %10s %4s%n", "op", "order", "n", "structure", "ns/elem",
+				"B/elem", "gc");
+		for (Op op : ops()) {
+			if (ops != null && !ops.contains(op.name)) {
+				continue;
+			}
+			for (String order : orders) {
+				for (int n : sizes) {
+					int[] keys = keys(order, n, new Random(n));
+					for (Structure structure : structures()) {
+						if ((structures == null || structures.contains(structure.name())) && op.supports(structure)) {
+							run(op, order, keys, structure);
+						}
+					}
+				}
+			}
+		}
+		System.out.println("# blackhole " + blackhole);
+	}
+
+	private static void run(Op op, String order, int[] keys, Structure structure) {
+		int warmups = keys.length >= 1000000 ? 1 : 5;
+		int iterations = keys.length >= 1000000 ? 3 : 10;
+		long time = 0;
+		long bytes = 0;
+		long elements = 0;
+		long gcBefore = 0;
+		for (int i = 0; i < warmups + iterations; i++) {
+			Object state = op.setup(structure, keys);
+			if (i == warmups) {
+				gcBefore = gcCount();
+			}
+			long allocated = THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+			long start = System.nanoTime();
+			long processed = op.run(structure, state, keys);
+			long end = System.nanoTime();
+			allocated = THREADS.getThreadAllocatedBytes(Thread.currentThread().getId()) - allocated;
+			if (i >= warmups) {
+				time += end - start;
+				bytes += allocated;
+				elements += processed;
+			}
+		}
+		System.out.printf("%-12s %-9s %9d %-22s %12.1f %10.1f %4d%n", op.name, order, keys.length,
+				structure.name(), (double) time / elements, (double) bytes / elements, gcCount() - gcBefore);
+	}
+
+	/**
+	 * static int[] keys(String order, int n, Random random)
+	 *
+	 * n keys in the given order. sorted/reverse/shuffled are permutations of
+	 * 1..n; zipf draws n keys out of 1..n with P(key of rank r) ~ 1/r, so it
+	 * repeats the popular keys and misses some others. local is a permutation
+	 * too: sorted, then shuffled within each run of LOCAL_WINDOW keys, so every
+	 * key is near the one before it.
+	 */
+	static int[] keys(String order, int n, Random random) {
+		int[] keys = new int[n];
+		if (order.equals("zipf")) {
+			double[] cdf = new double[n];
+			double sum = 0;
+			for (int r = 0; r < n; r++) {
+				sum += 1.0 / (r + 1);
+				cdf[r] = sum;
+			}
+			int[] byRank = keys("shuffled", n, random); // so popular keys are spread over the range
+			for (int i = 0; i < n; i++) {
+				int rank = Arrays.binarySearch(cdf, random.nextDouble() * sum);
+				keys[i] = byRank[rank < 0 ? Math.min(-rank - 1, n - 1) : rank];
+			}
+			return keys;
+		}
+		for (int i = 0; i < n; i++) {
+			keys[i] = order.equals("reverse") ? n - i : i + 1;
+		}
+		if (order.equals("shuffled") || order.equals("local")) {
+			for (int i = n - 1; i > 0; i--) {
+				int j = order.equals("local") ? i - random.nextInt(i % LOCAL_WINDOW + 1) : random.nextInt(i + 1);
+				int tmp = keys[i];
+				keys[i] = keys[j];
+				keys[j] = tmp;
+			}
+		}
+		return keys;
+	}
+
+	static List<Op> ops() {
+		List<Op> ops = new ArrayList<Op>();
+		ops.add(new Op("insert") {
+			Object setup(Structure s, int[] keys) {
+				return s.create();
+			}
+
+			long run(Structure s, Object tree, int[] keys) {
+				for (int k : keys) {
+					s.insert(tree, k, "info");
+				}
+				return keys.length;
+			}
+		});
+		ops.add(new Op("delete") {
+			Object setup(Structure s, int[] keys) {
+				return s.build(keys);
+			}
+
+			long run(Structure s, Object tree, int[] keys) {
+				for (int k : keys) {
+					s.delete(tree, k);
+				}
+				return keys.length;
+			}
+		});
+		ops.add(new Op("search") {
+			Object setup(Structure s, int[] keys) {
+				return s.build(keys);
+			}
+
+			long run(Structure s, Object tree, int[] keys) {
+				for (int k : keys) {
+					String info = s.search(tree, k);
+					blackhole += info == null ? 0 : 1;
+				}
+				return keys.length;
+			}
+		});
+		ops.add(new Op("keysToArray") {
+			Object setup(Structure s, int[] keys) {
+				return s.build(keys);
+			}
+
+			long run(Structure s, Object tree, int[] keys) {
+				int[] result = s.keysToArray(tree);
+				blackhole += result.length;
+				return result.length;
+			}
+		});
+		ops.add(new Op("infoToArray") {
+			Object setup(Structure s, int[] keys) {
+				return s.build(keys);
+			}
+
+			long run(Structure s, Object tree, int[] keys) {
+				String[] result = s.infoToArray(tree);
+				blackhole += result.length;
+				return result.length;
+			}
+		});
+		ops.add(new Op("split") {
+			boolean supports(Structure s) {
+				return s instanceof AVLTreeStructure;
+			}
+
+			Object setup(Structure s, int[] keys) {
+				return s.build(keys);
+			}
+
+			long run(Structure s, Object tree, int[] keys) {
+				AVLTree[] result = ((AVLTree) tree).split(splitKey(keys));
+				blackhole += result[0].size();
+				return 1;
+			}
+		});
+		ops.add(new Op("join") {
+			boolean supports(Structure s) {
+				return s instanceof AVLTreeStructure;
+			}
+
+			// the two halves of a split and the key that was taken out between them
+			Object setup(Structure s, int[] keys) {
+				AVLTree tree = (AVLTree) s.build(keys);
+				int x = splitKey(keys);
+				return new Object[] { tree.split(x), x };
+			}
+
+			long run(Structure s, Object state, int[] keys) {
+				AVLTree[] split = (AVLTree[]) ((Object[]) state)[0];
+				int x = (Integer) ((Object[]) state)[1];
+				blackhole += split[0].join(split[0].new AVLNode(x, "info"), split[1]);
+				return 1;
+			}
+		});
+		return ops;
+	}
+
+	// a key of the tree that is usually deep in it (the root would leave split no ancestors to relink)
+	private static int splitKey(int[] keys) {
+		return keys[keys.length / 2];
+	}
+
+	static List<Structure> structures() {
+		List<Structure> structures = new ArrayList<Structure>();
+		structures.add(new AVLTreeStructure());
+		structures.add(new FingerAVLTreeStructure());
+		structures.add(new MeasureAVLStructure());
+		structures.add(new MapStructure("TreeMap") {
+			NavigableMap<Integer, String> create() {
+				return new TreeMap<Integer, String>();
+			}
+		});
+		structures.add(new MapStructure("ConcurrentSkipListMap") {
+			NavigableMap<Integer, String> create() {
+				return new ConcurrentSkipListMap<Integer, String>();
+			}
+		});
+		return structures;
+	}
+
+	/**
+	 * abstract static class Op
+	 *
+	 * one benchmark: setup builds the state outside of the timed region, run is
+	 * timed and returns the number of elements it processed
+	 */
+	abstract static class Op {
+		final String name;
+
+		Op(String name) {
+			this.name = name;
+		}
+
+		boolean supports(Structure s) {
+			return s.supports(this.name);
+		}
+
+		abstract Object setup(Structure s, int[] keys);
+
+		abstract long run(Structure s, Object state, int[] keys);
+	}
+
+	/**
+	 * abstract static class Structure
+	 *
+	 * adapts a tree or map to the operations of AVLTree
+	 */
+	abstract static class Structure {
+		abstract String name();
+
+		abstract Object create();
+
+		abstract void insert(Object tree, int k, String info);
+
+		boolean supports(String op) {
+			return true;
+		}
+
+		void delete(Object tree, int k) {
+			throw new UnsupportedOperationException();
+		}
+
+		String search(Object tree, int k) {
+			throw new UnsupportedOperationException();
+		}
+
+		int[] keysToArray(Object tree) {
+			throw new UnsupportedOperationException();
+		}
+
+		String[] infoToArray(Object tree) {
+			throw new UnsupportedOperationException();
+		}
+
+		Object build(int[] keys) {
+			Object tree = this.create();
+			for (int k : keys) {
+				this.insert(tree, k, "info");
+			}
+			return tree;
+		}
+	}
+
+	static class AVLTreeStructure extends Structure {
+		String name() {
+			return "AVLTree";
+		}
+
+		Object create() {
+			return new AVLTree();
+		}
+
+		void insert(Object tree, int k, String info) {
+			((AVLTree) tree).insert(k, info);
+		}
+
+		void delete(Object tree, int k) {
+			((AVLTree) tree).delete(k);
+		}
+
+		String search(Object tree, int k) {
+			return ((AVLTree) tree).search(k);
+		}
+
+		int[] keysToArray(Object tree) {
+			return ((AVLTree) tree).keysToArray();
+		}
+
+		String[] infoToArray(Object tree) {
+			return ((AVLTree) tree).infoToArray();
+		}
+	}
+
+	// AVLTree with finger search on
+	static class FingerAVLTreeStructure extends AVLTreeStructure {
+		String name() {
+			return "AVLTree/finger";
+		}
+
+		Object create() {
+			AVLTree tree = new AVLTree();
+			tree.setFingerSearch(true);
+			return tree;
+		}
+	}
+
+	// MeasureAVL only inserts (through its finger search)
+	static class MeasureAVLStructure extends Structure {
+		String name() {
+			return "MeasureAVL";
+		}
+
+		boolean supports(String op) {
+			return op.equals("insert");
+		}
+
+		Object create() {
+			return new MeasureAVL();
+		}
+
+		void insert(Object tree, int k, String info) {
+			((MeasureAVL) tree).insert(k, info);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	abstract static class MapStructure extends Structure {
+		private final String name;
+
+		MapStructure(String name) {
+			this.name = name;
+		}
+
+		String name() {
+			return this.name;
+		}
+
+		abstract NavigableMap<Integer, String> create();
+
+		void insert(Object tree, int k, String info) {
+			((NavigableMap<Integer, String>) tree).putIfAbsent(k, info);
+		}
+
+		void delete(Object tree, int k) {
+			((NavigableMap<Integer, String>) tree).remove(k);
+		}
+
+		String search(Object tree, int k) {
+			return ((NavigableMap<Integer, String>) tree).get(k);
+		}
+
+		int[] keysToArray(Object tree) {
+			NavigableMap<Integer, String> map = (NavigableMap<Integer, String>) tree;
+			int[] keys = new int[map.size()];
+			int i = 0;
+			for (Iterator<Integer> it = map.keySet().iterator(); it.hasNext();) {
+				keys[i++] = it.next();
+			}
+			return keys;
+		}
+
+		String[] infoToArray(Object tree) {
+			NavigableMap<Integer, String> map = (NavigableMap<Integer, String>) tree;
+			String[] info = new String[map.size()];
+			int i = 0;
+			for (Map.Entry<Integer, String> entry : map.entrySet()) {
+				info[i++] = entry.getValue();
+			}
+			return info;
+		}
+	}
+
+	private static long gcCount() {
+		long count = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			count += Math.max(gc.getCollectionCount(), 0);
+		}
+		return count;
+	}
+
+	private static com.sun.management.ThreadMXBean threadBean() {
+		com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		bean.setThreadAllocatedMemoryEnabled(true);
+		return bean;
+	}
+}
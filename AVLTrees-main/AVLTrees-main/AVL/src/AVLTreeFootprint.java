@@ -0,0 +1,51 @@
+/**
+ *
+ * AVLTreeFootprint
+ *
+ * Reports the retained heap of an AVLTree in bytes per entry. All entries share
+ * one info string, so the number is the cost of the tree structure itself.
+ *
+ * usage: java AVLTreeFootprint [n1 n2 ...]
+ *
+ */
+public class AVLTreeFootprint {
+
+	private static final String INFO = "info";
+
+	public static void main(String[] args) {
+		int[] sizes = { 100000, 1000000, 5000000 };
+		if (args.length > 0) {
+			sizes = new int[args.length];
+			for (int i = 0; i < args.length; i++) {
+				sizes[i] = Integer.parseInt(args[i]);
+			}
+		}
+
+		for (int n : sizes) {
+			long before = usedHeap();
+			AVLTree tree = new AVLTree();
+			for (int i = 1; i <= n; i++) {
+				tree.insert(i, INFO);
+			}
+			long after = usedHeap();
+			double perEntry = (double) (after - before) / tree.size();
+			System.out.printf("n=%d: %.1f bytes per entry%n", n, perEntry);
+		}
+	}
+
+	// used heap after a few full collections, so that only live objects are counted
+	private static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		long used = Long.MAX_VALUE;
+		for (int i = 0; i < 5; i++) {
+			System.gc();
+			try {
+				Thread.sleep(50);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+		}
+		return used;
+	}
+}
@@ -0,0 +1,82 @@
+/**
+ *
+ * AVLTreeLatency
+ *
+ * The latencies of one AVLTree's operations, recorded only after
+ * AVLTree.enableLatency(): one LatencyHistogram each for search, insert,
+ * delete, split, join, keysToArray and infoToArray. Each timed call costs two
+ * System.nanoTime() reads and one LatencyHistogram.record(); a tree without
+ * latency recording pays one null check per call.
+ *
+ * The high percentiles and the maximum are where the long paths show: an
+ * insert or delete that rotates all the way up, a join of trees of very
+ * different heights, a split deep in the tree.
+ *
+ */
+public class AVLTreeLatency {
+
+	private final LatencyHistogram search = new LatencyHistogram();
+	private final LatencyHistogram insert = new LatencyHistogram();
+	private final LatencyHistogram delete = new LatencyHistogram();
+	private final LatencyHistogram split = new LatencyHistogram();
+	private final LatencyHistogram join = new LatencyHistogram();
+	private final LatencyHistogram keysToArray = new LatencyHistogram();
+	private final LatencyHistogram infoToArray = new LatencyHistogram();
+
+	public LatencyHistogram getSearch() {
+		return this.search;
+	}
+
+	public LatencyHistogram getInsert() {
+		return this.insert;
+	}
+
+	public LatencyHistogram getDelete() {
+		return this.delete;
+	}
+
+	public LatencyHistogram getSplit() {
+		return this.split;
+	}
+
+	public LatencyHistogram getJoin() {
+		return this.join;
+	}
+
+	public LatencyHistogram getKeysToArray() {
+		return this.keysToArray;
+	}
+
+	public LatencyHistogram getInfoToArray() {
+		return this.infoToArray;
+	}
+
+	// empties every histogram
+	public void reset() {
+		this.search.reset();
+		this.insert.reset();
+		this.delete.reset();
+		this.split.reset();
+		this.join.reset();
+		this.keysToArray.reset();
+		this.infoToArray.reset();
+	}
+
+	/**
+	 * public String report()
+	 *
+	 * returns one line per operation with its interval snapshot (count, p50, p99,
+	 * p99.9, max), and starts a new interval for all of them
+	 */
+	public String report() {
+		StringBuilder report = new StringBuilder();
+		report.append("search      ").append(this.search.intervalSnapshot()).append('\n');
+		report.append("insert      ").append(this.insert.intervalSnapshot()).append('\n');
+		report.append("delete      ").append(this.delete.intervalSnapshot()).append('\n');
+		report.append("split       ").append(this.split.intervalSnapshot()).append('\n');
+		report.append("join        ").append(this.join.intervalSnapshot()).append('\n');
+		report.append("keysToArray ").append(this.keysToArray.intervalSnapshot()).append('\n');
+		report.append("infoToArray ").append(this.infoToArray.intervalSnapshot()).append('\n');
+		return report.toString();
+	}
+}
@@ -0,0 +1,683 @@
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ *
+ * AVLTreeMap
+ *
+ * A NavigableMap<Integer, String> view of an AVLTree, so code that wants map
+ * semantics can use the tree itself instead of a TreeMap copy of it. Every
+ * lookup goes to the tree (floorNode, ceilingNode, .. which are built on
+ * findPosition), and puts and removes change it.
+ *
+ * subMap, headMap, tailMap and descendingMap return views over the same tree:
+ * they only keep their bounds and direction, nothing is copied. size() of a
+ * bounded view is countRange, O(log n).
+ *
+ * Keys are ints and -1 is reserved for the virtual leaf, so null keys throw
+ * NullPointerException and putting -1 throws IllegalArgumentException. The
+ * int overloads floorKey(int), ceilingKey(int), lowerKey(int) and
+ * higherKey(int) return -1 when there is no such key, without boxing.
+ *
+ * Like the tree's Cursor, iterators are not fail-fast: the map must not be
+ * modified during an iteration other than through the iterator's remove().
+ *
+ */
+public class AVLTreeMap extends AbstractMap<Integer, String> implements NavigableMap<Integer, String> {
+
+	private final AVLTree tree;
+
+	// the bounds are in increasing key order, also for a descending view
+	private final boolean hasLo;
+	private final int lo;
+	private final boolean loInclusive;
+	private final boolean hasHi;
+	private final int hi;
+	private final boolean hiInclusive;
+	private final boolean descending;
+
+	public AVLTreeMap() {
+		this(new AVLTree());
+	}
+
+	public AVLTreeMap(AVLTree tree) {
+		this(tree, false, 0, true, false, 0, true, false);
+	}
+
+	private AVLTreeMap(AVLTree tree, boolean hasLo, int lo, boolean loInclusive, boolean hasHi, int hi,
+			boolean hiInclusive, boolean descending) {
+		this.tree = tree;
+		this.hasLo = hasLo;
+		this.lo = lo;
+		this.loInclusive = loInclusive;
+		this.hasHi = hasHi;
+		this.hi = hi;
+		this.hiInclusive = hiInclusive;
+		this.descending = descending;
+	}
+
+	// the tree behind this map and all of its views
+	public AVLTree getTree() {
+		return this.tree;
+	}
+
+	/**
+	 * public int size()
+	 *
+	 * the size of the tree for the whole map, countRange of the bounds for a view
+	 */
+	public int size() {
+		if (!this.hasLo && !this.hasHi) {
+			return this.tree.size();
+		}
+		if ((this.hasLo && !this.loInclusive && this.lo == Integer.MAX_VALUE)
+				|| (this.hasHi && !this.hiInclusive && this.hi == Integer.MIN_VALUE)) {
+			return 0; // nothing is above MAX_VALUE or below MIN_VALUE
+		}
+		int from = !this.hasLo ? Integer.MIN_VALUE : this.loInclusive ? this.lo : this.lo + 1;
+		int to = !this.hasHi ? Integer.MAX_VALUE : this.hiInclusive ? this.hi : this.hi - 1;
+		return this.tree.countRange(from, to);
+	}
+
+	public boolean isEmpty() {
+		return this.lowestNode() == null;
+	}
+
+	public boolean containsKey(Object key) {
+		return this.exactNode(key) != null;
+	}
+
+	public String get(Object key) {
+		AVLTree.IAVLNode node = this.exactNode(key);
+		return node == null ? null : node.getValue();
+	}
+
+	/**
+	 * public String put(Integer key, String value)
+	 *
+	 * replaces the info of key if it is in the tree, inserts it otherwise. returns
+	 * the previous info, or null if key was not in the tree.
+	 */
+	public String put(Integer key, String value) {
+		int k = key;
+		if (k == -1) {
+			throw new IllegalArgumentException("key -1 is reserved for virtual nodes");
+		}
+		if (!this.inRange(k)) {
+			throw new IllegalArgumentException("key out of range: " + k);
+		}
+		AVLTree.IAVLNode node = this.tree.floorNode(k);
+		if (node != null && node.getKey() == k) {
+			String previous = node.getValue();
+			((AVLTree.AVLNode) node).setValue(value);
+			return previous;
+		}
+		this.tree.insert(k, value);
+		return null;
+	}
+
+	public String remove(Object key) {
+		AVLTree.IAVLNode node = this.exactNode(key);
+		if (node == null) {
+			return null;
+		}
+		String previous = node.getValue();
+		this.tree.delete(node.getKey());
+		return previous;
+	}
+
+	public void clear() {
+		if (!this.hasLo && !this.hasHi) {
+			this.tree.clear();
+			return;
+		}
+		for (Iterator<Integer> it = this.navigableKeySet().iterator(); it.hasNext();) {
+			it.next();
+			it.remove();
+		}
+	}
+
+	public Set<Map.Entry<Integer, String>> entrySet() {
+		return new EntrySet();
+	}
+
+	public Set<Integer> keySet() {
+		return this.navigableKeySet();
+	}
+
+	public Comparator<? super Integer> comparator() {
+		return this.descending ? Collections.<Integer>reverseOrder() : null;
+	}
+
+	/**
+	 * public Map.Entry<Integer, String> xxxEntry(Integer key) / Integer xxxKey(Integer key)
+	 *
+	 * the NavigableMap lookups, in the order of this view (reversed for a
+	 * descending view). returned entries are snapshots, like TreeMap's.
+	 */
+	public Map.Entry<Integer, String> lowerEntry(Integer key) {
+		return entry(this.lowerNode(key));
+	}
+
+	public Integer lowerKey(Integer key) {
+		return keyOrNull(this.lowerNode(key));
+	}
+
+	public Map.Entry<Integer, String> floorEntry(Integer key) {
+		return entry(this.floorNode(key));
+	}
+
+	public Integer floorKey(Integer key) {
+		return keyOrNull(this.floorNode(key));
+	}
+
+	public Map.Entry<Integer, String> ceilingEntry(Integer key) {
+		return entry(this.ceilingNode(key));
+	}
+
+	public Integer ceilingKey(Integer key) {
+		return keyOrNull(this.ceilingNode(key));
+	}
+
+	public Map.Entry<Integer, String> higherEntry(Integer key) {
+		return entry(this.higherNode(key));
+	}
+
+	public Integer higherKey(Integer key) {
+		return keyOrNull(this.higherNode(key));
+	}
+
+	/**
+	 * public int floorKey(int k) / ceilingKey(int k) / lowerKey(int k) / higherKey(int k)
+	 *
+	 * like the Integer versions, but return -1 (which is never a key) instead of
+	 * null when there is no such key, so nothing is boxed.
+	 */
+	public int floorKey(int k) {
+		return keyOrVirtual(this.floorNode(k));
+	}
+
+	public int ceilingKey(int k) {
+		return keyOrVirtual(this.ceilingNode(k));
+	}
+
+	public int lowerKey(int k) {
+		return keyOrVirtual(this.lowerNode(k));
+	}
+
+	public int higherKey(int k) {
+		return keyOrVirtual(this.higherNode(k));
+	}
+
+	public Map.Entry<Integer, String> firstEntry() {
+		return entry(this.lowestNode());
+	}
+
+	public Map.Entry<Integer, String> lastEntry() {
+		return entry(this.highestNode());
+	}
+
+	public Integer firstKey() {
+		return keyOrThrow(this.lowestNode());
+	}
+
+	public Integer lastKey() {
+		return keyOrThrow(this.highestNode());
+	}
+
+	public Map.Entry<Integer, String> pollFirstEntry() {
+		return this.poll(this.lowestNode());
+	}
+
+	public Map.Entry<Integer, String> pollLastEntry() {
+		return this.poll(this.highestNode());
+	}
+
+	public AVLTreeMap descendingMap() {
+		return new AVLTreeMap(this.tree, this.hasLo, this.lo, this.loInclusive, this.hasHi, this.hi, this.hiInclusive,
+				!this.descending);
+	}
+
+	public NavigableSet<Integer> navigableKeySet() {
+		return new KeySet(this);
+	}
+
+	public NavigableSet<Integer> descendingKeySet() {
+		return new KeySet(this.descendingMap());
+	}
+
+	/**
+	 * public AVLTreeMap subMap / headMap / tailMap
+	 *
+	 * views of the part of this map between the given keys, in the same
+	 * direction. nothing is copied. a bound outside of this map's own bounds
+	 * throws IllegalArgumentException, like TreeMap.
+	 */
+	public AVLTreeMap subMap(Integer fromKey, boolean fromInclusive, Integer toKey, boolean toInclusive) {
+		int from = fromKey;
+		int to = toKey;
+		if (this.descending ? from < to : from > to) {
+			throw new IllegalArgumentException("fromKey > toKey");
+		}
+		if (this.descending) {
+			return this.bounded(true, to, toInclusive, true, from, fromInclusive);
+		}
+		return this.bounded(true, from, fromInclusive, true, to, toInclusive);
+	}
+
+	public AVLTreeMap headMap(Integer toKey, boolean inclusive) {
+		if (this.descending) {
+			return this.bounded(true, toKey, inclusive, false, 0, true);
+		}
+		return this.bounded(false, 0, true, true, toKey, inclusive);
+	}
+
+	public AVLTreeMap tailMap(Integer fromKey, boolean inclusive) {
+		if (this.descending) {
+			return this.bounded(false, 0, true, true, fromKey, inclusive);
+		}
+		return this.bounded(true, fromKey, inclusive, false, 0, true);
+	}
+
+	public AVLTreeMap subMap(Integer fromKey, Integer toKey) {
+		return this.subMap(fromKey, true, toKey, false);
+	}
+
+	public AVLTreeMap headMap(Integer toKey) {
+		return this.headMap(toKey, false);
+	}
+
+	public AVLTreeMap tailMap(Integer fromKey) {
+		return this.tailMap(fromKey, true);
+	}
+
+	// a view with the given bounds (in increasing order), or this view's own where there are none
+	private AVLTreeMap bounded(boolean newHasLo, int newLo, boolean newLoInclusive, boolean newHasHi, int newHi,
+			boolean newHiInclusive) {
+		if (newHasLo && !this.inClosedRange(newLo, newLoInclusive)) {
+			throw new IllegalArgumentException("key out of range: " + newLo);
+		}
+		if (newHasHi && !this.inClosedRange(newHi, newHiInclusive)) {
+			throw new IllegalArgumentException("key out of range: " + newHi);
+		}
+		if (!newHasLo) {
+			newHasLo = this.hasLo;
+			newLo = this.lo;
+			newLoInclusive = this.loInclusive;
+		}
+		if (!newHasHi) {
+			newHasHi = this.hasHi;
+			newHi = this.hi;
+			newHiInclusive = this.hiInclusive;
+		}
+		return new AVLTreeMap(this.tree, newHasLo, newLo, newLoInclusive, newHasHi, newHi, newHiInclusive,
+				this.descending);
+	}
+
+	// true if k may bound a view inside this one: in range, or on an exclusive bound when exclusive itself
+	private boolean inClosedRange(int k, boolean inclusive) {
+		if (this.hasLo && (k < this.lo || (k == this.lo && !this.loInclusive && inclusive))) {
+			return false;
+		}
+		return !(this.hasHi && (k > this.hi || (k == this.hi && !this.hiInclusive && inclusive)));
+	}
+
+	private boolean tooLow(int k) {
+		return this.hasLo && (k < this.lo || (k == this.lo && !this.loInclusive));
+	}
+
+	private boolean tooHigh(int k) {
+		return this.hasHi && (k > this.hi || (k == this.hi && !this.hiInclusive));
+	}
+
+	private boolean inRange(int k) {
+		return !this.tooLow(k) && !this.tooHigh(k);
+	}
+
+	// the node with key, or null if it is not in the tree or not in this view
+	private AVLTree.IAVLNode exactNode(Object key) {
+		int k = (Integer) key;
+		if (k == -1 || !this.inRange(k)) {
+			return null;
+		}
+		AVLTree.IAVLNode node = this.tree.floorNode(k);
+		return node != null && node.getKey() == k ? node : null;
+	}
+
+	/*
+	 * the lookups in increasing key order, limited to the bounds. the direction
+	 * of the view is applied on top of them, below.
+	 */
+
+	private AVLTree.IAVLNode absLowest() {
+		AVLTree.IAVLNode node;
+		if (!this.hasLo) {
+			node = this.tree.empty() ? null : this.tree.ceilingNode(Integer.MIN_VALUE);
+		} else {
+			node = this.loInclusive ? this.tree.ceilingNode(this.lo) : this.tree.higherNode(this.lo);
+		}
+		return node == null || this.tooHigh(node.getKey()) ? null : node;
+	}
+
+	private AVLTree.IAVLNode absHighest() {
+		AVLTree.IAVLNode node;
+		if (!this.hasHi) {
+			node = this.tree.empty() ? null : this.tree.floorNode(Integer.MAX_VALUE);
+		} else {
+			node = this.hiInclusive ? this.tree.floorNode(this.hi) : this.tree.lowerNode(this.hi);
+		}
+		return node == null || this.tooLow(node.getKey()) ? null : node;
+	}
+
+	private AVLTree.IAVLNode absCeiling(int k) {
+		if (this.tooLow(k)) {
+			return this.absLowest();
+		}
+		AVLTree.IAVLNode node = this.tree.ceilingNode(k);
+		return node == null || this.tooHigh(node.getKey()) ? null : node;
+	}
+
+	private AVLTree.IAVLNode absHigher(int k) {
+		if (this.tooLow(k)) {
+			return this.absLowest();
+		}
+		AVLTree.IAVLNode node = this.tree.higherNode(k);
+		return node == null || this.tooHigh(node.getKey()) ? null : node;
+	}
+
+	private AVLTree.IAVLNode absFloor(int k) {
+		if (this.tooHigh(k)) {
+			return this.absHighest();
+		}
+		AVLTree.IAVLNode node = this.tree.floorNode(k);
+		return node == null || this.tooLow(node.getKey()) ? null : node;
+	}
+
+	private AVLTree.IAVLNode absLower(int k) {
+		if (this.tooHigh(k)) {
+			return this.absHighest();
+		}
+		AVLTree.IAVLNode node = this.tree.lowerNode(k);
+		return node == null || this.tooLow(node.getKey()) ? null : node;
+	}
+
+	private AVLTree.IAVLNode lowestNode() {
+		return this.descending ? this.absHighest() : this.absLowest();
+	}
+
+	private AVLTree.IAVLNode highestNode() {
+		return this.descending ? this.absLowest() : this.absHighest();
+	}
+
+	private AVLTree.IAVLNode floorNode(int k) {
+		return this.descending ? this.absCeiling(k) : this.absFloor(k);
+	}
+
+	private AVLTree.IAVLNode ceilingNode(int k) {
+		return this.descending ? this.absFloor(k) : this.absCeiling(k);
+	}
+
+	private AVLTree.IAVLNode lowerNode(int k) {
+		return this.descending ? this.absHigher(k) : this.absLower(k);
+	}
+
+	private AVLTree.IAVLNode higherNode(int k) {
+		return this.descending ? this.absLower(k) : this.absHigher(k);
+	}
+
+	// the node after node in this view's order, or null at the end of the view
+	private AVLTree.IAVLNode nextInView(AVLTree.IAVLNode node) {
+		if (this.descending) {
+			node = this.tree.nodeBefore(node);
+			return node == null || this.tooLow(node.getKey()) ? null : node;
+		}
+		node = this.tree.nodeAfter(node);
+		return node == null || this.tooHigh(node.getKey()) ? null : node;
+	}
+
+	private Map.Entry<Integer, String> poll(AVLTree.IAVLNode node) {
+		if (node == null) {
+			return null;
+		}
+		Map.Entry<Integer, String> entry = entry(node);
+		this.tree.delete(node.getKey());
+		return entry;
+	}
+
+	private static Map.Entry<Integer, String> entry(AVLTree.IAVLNode node) {
+		return node == null ? null : new AbstractMap.SimpleImmutableEntry<Integer, String>(node.getKey(), node.getValue());
+	}
+
+	private static Integer keyOrNull(AVLTree.IAVLNode node) {
+		return node == null ? null : node.getKey();
+	}
+
+	private static int keyOrVirtual(AVLTree.IAVLNode node) {
+		return node == null ? -1 : node.getKey();
+	}
+
+	private static Integer keyOrThrow(AVLTree.IAVLNode node) {
+		if (node == null) {
+			throw new NoSuchElementException();
+		}
+		return node.getKey();
+	}
+
+	/**
+	 * private abstract class NodeIterator
+	 *
+	 * walks the view in its order with nodeAfter / nodeBefore. remove() deletes
+	 * the last node from the tree.
+	 */
+	private abstract class NodeIterator<T> implements Iterator<T> {
+		private AVLTree.IAVLNode next = AVLTreeMap.this.lowestNode();
+		private AVLTree.IAVLNode last = null;
+
+		public boolean hasNext() {
+			return this.next != null;
+		}
+
+		protected AVLTree.IAVLNode nextNode() {
+			AVLTree.IAVLNode node = this.next;
+			if (node == null) {
+				throw new NoSuchElementException();
+			}
+			this.next = AVLTreeMap.this.nextInView(node);
+			this.last = node;
+			return node;
+		}
+
+		public void remove() {
+			if (this.last == null) {
+				throw new IllegalStateException();
+			}
+			// delete relinks nodes rather than moving items between them, so next stays valid
+			AVLTreeMap.this.tree.delete(this.last.getKey());
+			this.last = null;
+		}
+	}
+
+	/**
+	 * private class WriteThroughEntry
+	 *
+	 * an entry of the entry set iterator. setValue changes the info in the tree.
+	 */
+	private static class WriteThroughEntry extends AbstractMap.SimpleEntry<Integer, String> {
+		private static final long serialVersionUID = 1L;
+		private final transient AVLTree.IAVLNode node;
+
+		private WriteThroughEntry(AVLTree.IAVLNode node) {
+			super(node.getKey(), node.getValue());
+			this.node = node;
+		}
+
+		public String setValue(String value) {
+			((AVLTree.AVLNode) this.node).setValue(value);
+			return super.setValue(value);
+		}
+	}
+
+	private class EntrySet extends AbstractSet<Map.Entry<Integer, String>> {
+		public Iterator<Map.Entry<Integer, String>> iterator() {
+			return new NodeIterator<Map.Entry<Integer, String>>() {
+				public Map.Entry<Integer, String> next() {
+					return new WriteThroughEntry(this.nextNode());
+				}
+			};
+		}
+
+		public int size() {
+			return AVLTreeMap.this.size();
+		}
+
+		public boolean contains(Object o) {
+			if (!(o instanceof Map.Entry)) {
+				return false;
+			}
+			Map.Entry<?, ?> entry = (Map.Entry<?, ?>) o;
+			if (!(entry.getKey() instanceof Integer)) {
+				return false;
+			}
+			AVLTree.IAVLNode node = AVLTreeMap.this.exactNode(entry.getKey());
+			return node != null && (node.getValue() == null ? entry.getValue() == null
+					: node.getValue().equals(entry.getValue()));
+		}
+
+		public boolean remove(Object o) {
+			if (!this.contains(o)) {
+				return false;
+			}
+			AVLTreeMap.this.remove(((Map.Entry<?, ?>) o).getKey());
+			return true;
+		}
+
+		public void clear() {
+			AVLTreeMap.this.clear();
+		}
+	}
+
+	/**
+	 * static class KeySet
+	 *
+	 * the keys of an AVLTreeMap as a NavigableSet. every method is the map's, so
+	 * a key set of a view is a view too.
+	 */
+	static class KeySet extends AbstractSet<Integer> implements NavigableSet<Integer> {
+		private final AVLTreeMap map;
+
+		KeySet(AVLTreeMap map) {
+			this.map = map;
+		}
+
+		public Iterator<Integer> iterator() {
+			return this.map.new NodeIterator<Integer>() {
+				public Integer next() {
+					return this.nextNode().getKey();
+				}
+			};
+		}
+
+		public Iterator<Integer> descendingIterator() {
+			return this.descendingSet().iterator();
+		}
+
+		public int size() {
+			return this.map.size();
+		}
+
+		public boolean isEmpty() {
+			return this.map.isEmpty();
+		}
+
+		public boolean contains(Object o) {
+			return o instanceof Integer && this.map.containsKey(o);
+		}
+
+		public boolean remove(Object o) {
+			if (!this.contains(o)) {
+				return false;
+			}
+			this.map.remove(o);
+			return true;
+		}
+
+		public void clear() {
+			this.map.clear();
+		}
+
+		public Comparator<? super Integer> comparator() {
+			return this.map.comparator();
+		}
+
+		public Integer first() {
+			return this.map.firstKey();
+		}
+
+		public Integer last() {
+			return this.map.lastKey();
+		}
+
+		public Integer lower(Integer e) {
+			return this.map.lowerKey(e);
+		}
+
+		public Integer floor(Integer e) {
+			return this.map.floorKey(e);
+		}
+
+		public Integer ceiling(Integer e) {
+			return this.map.ceilingKey(e);
+		}
+
+		public Integer higher(Integer e) {
+			return this.map.higherKey(e);
+		}
+
+		public Integer pollFirst() {
+			Map.Entry<Integer, String> entry = this.map.pollFirstEntry();
+			return entry == null ? null : entry.getKey();
+		}
+
+		public Integer pollLast() {
+			Map.Entry<Integer, String> entry = this.map.pollLastEntry();
+			return entry == null ? null : entry.getKey();
+		}
+
+		public NavigableSet<Integer> descendingSet() {
+			return new KeySet(this.map.descendingMap());
+		}
+
+		public NavigableSet<Integer> subSet(Integer fromElement, boolean fromInclusive, Integer toElement,
+				boolean toInclusive) {
+			return new KeySet(this.map.subMap(fromElement, fromInclusive, toElement, toInclusive));
+		}
+
+		public NavigableSet<Integer> headSet(Integer toElement, boolean inclusive) {
+			return new KeySet(this.map.headMap(toElement, inclusive));
+		}
+
+		public NavigableSet<Integer> tailSet(Integer fromElement, boolean inclusive) {
+			return new KeySet(this.map.tailMap(fromElement, inclusive));
+		}
+
+		public NavigableSet<Integer> subSet(Integer fromElement, Integer toElement) {
+			return this.subSet(fromElement, true, toElement, false);
+		}
+
+		public NavigableSet<Integer> headSet(Integer toElement) {
+			return this.headSet(toElement, false);
+		}
+
+		public NavigableSet<Integer> tailSet(Integer fromElement) {
+			return this.tailSet(fromElement, true);
+		}
+	}
+}
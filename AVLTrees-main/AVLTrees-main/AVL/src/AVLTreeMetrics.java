@@ -0,0 +1,266 @@
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ *
+ * AVLTreeMetrics
+ *
+ * Cumulative counters of one AVLTree, collected only after
+ * AVLTree.enableMetrics(); a tree without metrics pays one null check per
+ * rebalancing step. Counted are:
+ *
+ * - operations: search, insert, delete, split and join
+ * - insert path (AVLTree.rebalance): promotions, single and double rotations.
+ *   join rebalances with the same cases, so its rotations are counted here too
+ * - delete path (rebalanceDelete): demotions, single and double rotations
+ * - the rebalancing operations insert and delete return, total and the largest
+ *   one, which is where a rotation storm shows
+ * - the path lengths of search, insert and delete, in edges, as a histogram:
+ *   the descent from the root, or with finger search the climb from the
+ *   finger plus the descent from there
+ * - split: the number of joins of the subtrees along the path; join: the
+ *   rebalancing cost join returns
+ *
+ * The counters are written by the tree's thread without synchronization, so
+ * like the tree itself they are exact only when read from that thread. Read
+ * from JMX they may lag a little behind. register() publishes them as an MBean
+ * under AVLTree:type=AVLTreeMetrics,name=<name>.
+ *
+ */
+public class AVLTreeMetrics implements AVLTreeMetricsMBean {
+
+	// longer paths go to the last bucket
+	private static final int MAX_PATH_LENGTH = 63;
+
+	private long searches;
+	private long inserts;
+	private long deletes;
+	private long splits;
+	private long joins;
+
+	private long insertPromotions;
+	private long insertSingleRotations;
+	private long insertDoubleRotations;
+	private long deleteDemotions;
+	private long deleteSingleRotations;
+	private long deleteDoubleRotations;
+
+	private long rebalanceOperations;
+	private long maxRebalanceOperations;
+
+	private final long[] pathLengths = new long[MAX_PATH_LENGTH + 1];
+	private long descents;
+	private long totalPathLength;
+	private int maxPathLength;
+
+	private long splitJoins;
+	private long maxSplitJoins;
+	private long joinCost;
+	private long maxJoinCost;
+
+	private ObjectName registeredName;
+
+	/**
+	 * public ObjectName register(String name)
+	 *
+	 * registers these metrics with the platform MBean server and returns the
+	 * name they were registered under.
+	 */
+	public synchronized ObjectName register(String name) throws JMException {
+		if (this.registeredName != null) {
+			throw new IllegalStateException("already registered as " + this.registeredName);
+		}
+		ObjectName objectName = new ObjectName("AVLTree:type=AVLTreeMetrics,name=" + ObjectName.quote(name));
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+		this.registeredName = objectName;
+		return objectName;
+	}
+
+	// removes the MBean that register() added, if there is one
+	public synchronized void unregister() throws JMException {
+		if (this.registeredName != null) {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			server.unregisterMBean(this.registeredName);
+			this.registeredName = null;
+		}
+	}
+
+	// sets every counter back to 0
+	public void reset() {
+		this.searches = 0;
+		this.inserts = 0;
+		this.deletes = 0;
+		this.splits = 0;
+		this.joins = 0;
+		this.insertPromotions = 0;
+		this.insertSingleRotations = 0;
+		this.insertDoubleRotations = 0;
+		this.deleteDemotions = 0;
+		this.deleteSingleRotations = 0;
+		this.deleteDoubleRotations = 0;
+		this.rebalanceOperations = 0;
+		this.maxRebalanceOperations = 0;
+		Arrays.fill(this.pathLengths, 0);
+		this.descents = 0;
+		this.totalPathLength = 0;
+		this.maxPathLength = 0;
+		this.splitJoins = 0;
+		this.maxSplitJoins = 0;
+		this.joinCost = 0;
+		this.maxJoinCost = 0;
+	}
+
+	// recording, called by AVLTree
+
+	void search() {
+		this.searches++;
+	}
+
+	void insert(int rebalancing) {
+		this.inserts++;
+		this.rebalancing(rebalancing);
+	}
+
+	void delete(int rebalancing) {
+		this.deletes++;
+		this.rebalancing(rebalancing);
+	}
+
+	void split(int pathJoins) {
+		this.splits++;
+		this.splitJoins += pathJoins;
+		this.maxSplitJoins = Math.max(this.maxSplitJoins, pathJoins);
+	}
+
+	void join(int cost) {
+		this.joins++;
+		this.joinCost += cost;
+		this.maxJoinCost = Math.max(this.maxJoinCost, cost);
+	}
+
+	void insertPromotion() {
+		this.insertPromotions++;
+	}
+
+	void insertRotation(boolean isDouble) {
+		if (isDouble) {
+			this.insertDoubleRotations++;
+		} else {
+			this.insertSingleRotations++;
+		}
+	}
+
+	void deleteDemotion() {
+		this.deleteDemotions++;
+	}
+
+	void deleteRotation(boolean isDouble) {
+		if (isDouble) {
+			this.deleteDoubleRotations++;
+		} else {
+			this.deleteSingleRotations++;
+		}
+	}
+
+	// a search path of this many edges (0 if it stopped where it started)
+	void descent(int length) {
+		this.pathLengths[Math.min(length, MAX_PATH_LENGTH)]++;
+		this.descents++;
+		this.totalPathLength += length;
+		this.maxPathLength = Math.max(this.maxPathLength, length);
+	}
+
+	private void rebalancing(int count) {
+		if (count > 0) {
+			this.rebalanceOperations += count;
+			this.maxRebalanceOperations = Math.max(this.maxRebalanceOperations, count);
+		}
+	}
+
+	// getters
+
+	public long getSearches() {
+		return this.searches;
+	}
+
+	public long getInserts() {
+		return this.inserts;
+	}
+
+	public long getDeletes() {
+		return this.deletes;
+	}
+
+	public long getSplits() {
+		return this.splits;
+	}
+
+	public long getJoins() {
+		return this.joins;
+	}
+
+	public long getInsertPromotions() {
+		return this.insertPromotions;
+	}
+
+	public long getInsertSingleRotations() {
+		return this.insertSingleRotations;
+	}
+
+	public long getInsertDoubleRotations() {
+		return this.insertDoubleRotations;
+	}
+
+	public long getDeleteDemotions() {
+		return this.deleteDemotions;
+	}
+
+	public long getDeleteSingleRotations() {
+		return this.deleteSingleRotations;
+	}
+
+	public long getDeleteDoubleRotations() {
+		return this.deleteDoubleRotations;
+	}
+
+	public long getRebalanceOperations() {
+		return this.rebalanceOperations;
+	}
+
+	public long getMaxRebalanceOperations() {
+		return this.maxRebalanceOperations;
+	}
+
+	// pathLengths[d] is the number of paths of d edges, the last bucket holds the longer ones
+	public long[] getPathLengths() {
+		return this.pathLengths.clone();
+	}
+
+	public double getMeanPathLength() {
+		return this.descents == 0 ? 0 : (double) this.totalPathLength / this.descents;
+	}
+
+	public int getMaxPathLength() {
+		return this.maxPathLength;
+	}
+
+	public long getSplitJoins() {
+		return this.splitJoins;
+	}
+
+	public long getMaxSplitJoins() {
+		return this.maxSplitJoins;
+	}
+
+	public long getJoinCost() {
+		return this.joinCost;
+	}
+
+	public long getMaxJoinCost() {
+		return this.maxJoinCost;
+	}
+}
@@ -0,0 +1,50 @@
+/**
+ *
+ * AVLTreeMetricsMBean
+ *
+ * The management interface of AVLTreeMetrics: its getters and reset().
+ *
+ */
+public interface AVLTreeMetricsMBean {
+	long getSearches();
+
+	long getInserts();
+
+	long getDeletes();
+
+	long getSplits();
+
+	long getJoins();
+
+	long getInsertPromotions();
+
+	long getInsertSingleRotations();
+
+	long getInsertDoubleRotations();
+
+	long getDeleteDemotions();
+
+	long getDeleteSingleRotations();
+
+	long getDeleteDoubleRotations();
+
+	long getRebalanceOperations();
+
+	long getMaxRebalanceOperations();
+
+	long[] getPathLengths();
+
+	double getMeanPathLength();
+
+	int getMaxPathLength();
+
+	long getSplitJoins();
+
+	long getMaxSplitJoins();
+
+	long getJoinCost();
+
+	long getMaxJoinCost();
+
+	void reset();
+}
@@ -0,0 +1,210 @@
+/**
+ *
+ * AVLTreeShape
+ *
+ * The shape of an AVLTree, as returned by AVLTree.shapeStats(): the height
+ * against the ideal log2(n+1), node depths, the rank differences of the
+ * nodes, and the nodes whose stored fields disagree with their children:
+ *
+ * - height: stored height != 1 + max(children's heights)
+ * - size: stored size != 1 + children's sizes
+ * - rank: stored rank != height. rank is kept by promote/demote and calcRank,
+ *   height by update(), and the tree relies on them being equal
+ * - unbalanced: the children's heights differ by more than 1
+ *
+ * The tree-wide numbers (size, height) are read from the root. The per-node
+ * numbers cover the nodes that were examined, which is the whole tree, or one
+ * window of it (AVLTree.shapeStats(fromKey, maxNodes)). Windows are merged with
+ * merge(), so a large tree can be checked a little at a time.
+ *
+ */
+public class AVLTreeShape {
+
+	private final int size;
+	private final int height;
+
+	private long nodes;
+	private long totalDepth;
+	private int maxDepth;
+
+	private long rankDiff11;
+	private long rankDiff12;
+	private long rankDiff21;
+	private long rankDiffOther;
+
+	private long heightMismatches;
+	private long sizeMismatches;
+	private long rankMismatches;
+	private long unbalanced;
+	private long inconsistentNodes;
+
+	private boolean more;
+	private int nextKey;
+
+	AVLTreeShape(int size, int height) {
+		this.size = size;
+		this.height = height;
+	}
+
+	// adds one real node at the given depth (the root is 0)
+	void add(AVLTree.IAVLNode node, int depth) {
+		this.nodes++;
+		this.totalDepth += depth;
+		this.maxDepth = Math.max(this.maxDepth, depth);
+
+		int rdl = node.rankDiffLeft();
+		int rdr = node.rankDiffRight();
+		if (rdl == 1 && rdr == 1) {
+			this.rankDiff11++;
+		} else if (rdl == 1 && rdr == 2) {
+			this.rankDiff12++;
+		} else if (rdl == 2 && rdr == 1) {
+			this.rankDiff21++;
+		} else {
+			this.rankDiffOther++;
+		}
+
+		AVLTree.IAVLNode left = node.getLeft();
+		AVLTree.IAVLNode right = node.getRight();
+		boolean inconsistent = false;
+		if (node.getHeight() != 1 + Math.max(left.getHeight(), right.getHeight())) {
+			this.heightMismatches++;
+			inconsistent = true;
+		}
+		if (node.getSize() != 1 + left.getSize() + right.getSize()) {
+			this.sizeMismatches++;
+			inconsistent = true;
+		}
+		if (node.getRank() != node.getHeight()) {
+			this.rankMismatches++;
+			inconsistent = true;
+		}
+		if (Math.abs(left.getHeight() - right.getHeight()) > 1) {
+			this.unbalanced++;
+			inconsistent = true;
+		}
+		if (inconsistent) {
+			this.inconsistentNodes++;
+		}
+	}
+
+	// where the next window starts, see hasMore()
+	void setNext(boolean more, int nextKey) {
+		this.more = more;
+		this.nextKey = nextKey;
+	}
+
+	/**
+	 * public AVLTreeShape merge(AVLTreeShape other)
+	 *
+	 * returns the two windows together: the node counts are added, and the
+	 * tree-wide numbers and the next window are taken from other (the later one)
+	 */
+	public AVLTreeShape merge(AVLTreeShape other) {
+		AVLTreeShape merged = new AVLTreeShape(other.size, other.height);
+		merged.nodes = this.nodes + other.nodes;
+		merged.totalDepth = this.totalDepth + other.totalDepth;
+		merged.maxDepth = Math.max(this.maxDepth, other.maxDepth);
+		merged.rankDiff11 = this.rankDiff11 + other.rankDiff11;
+		merged.rankDiff12 = this.rankDiff12 + other.rankDiff12;
+		merged.rankDiff21 = this.rankDiff21 + other.rankDiff21;
+		merged.rankDiffOther = this.rankDiffOther + other.rankDiffOther;
+		merged.heightMismatches = this.heightMismatches + other.heightMismatches;
+		merged.sizeMismatches = this.sizeMismatches + other.sizeMismatches;
+		merged.rankMismatches = this.rankMismatches + other.rankMismatches;
+		merged.unbalanced = this.unbalanced + other.unbalanced;
+		merged.inconsistentNodes = this.inconsistentNodes + other.inconsistentNodes;
+		merged.setNext(other.more, other.nextKey);
+		return merged;
+	}
+
+	// the number of items in the tree
+	public int getSize() {
+		return this.size;
+	}
+
+	// the height of the tree, -1 if it is empty
+	public int getHeight() {
+		return this.height;
+	}
+
+	// log2(n+1): a perfectly balanced tree has height ceil(log2(n+1)) - 1
+	public double getIdealHeight() {
+		return Math.log(this.size + 1.0) / Math.log(2);
+	}
+
+	// (height + 1) / log2(n+1): 1 for a perfect tree, at most ~1.44 for an AVL tree
+	public double getHeightRatio() {
+		return this.size == 0 ? 1 : (this.height + 1) / this.getIdealHeight();
+	}
+
+	// the number of nodes examined
+	public long getNodes() {
+		return this.nodes;
+	}
+
+	public double getMeanDepth() {
+		return this.nodes == 0 ? 0 : (double) this.totalDepth / this.nodes;
+	}
+
+	public int getMaxDepth() {
+		return this.maxDepth;
+	}
+
+	public long getRankDiff11() {
+		return this.rankDiff11;
+	}
+
+	public long getRankDiff12() {
+		return this.rankDiff12;
+	}
+
+	public long getRankDiff21() {
+		return this.rankDiff21;
+	}
+
+	// nodes that are none of 1,1 / 1,2 / 2,1 - there should be none
+	public long getRankDiffOther() {
+		return this.rankDiffOther;
+	}
+
+	public long getHeightMismatches() {
+		return this.heightMismatches;
+	}
+
+	public long getSizeMismatches() {
+		return this.sizeMismatches;
+	}
+
+	public long getRankMismatches() {
+		return this.rankMismatches;
+	}
+
+	public long getUnbalanced() {
+		return this.unbalanced;
+	}
+
+	// nodes with at least one of the mismatches above
+	public long getInconsistentNodes() {
+		return this.inconsistentNodes;
+	}
+
+	// true if the window stopped before the last node; getNextKey() is where to go on
+	public boolean hasMore() {
+		return this.more;
+	}
+
+	public int getNextKey() {
+		return this.nextKey;
+	}
+
+	public String toString() {
+		return "size=" + this.size + " height=" + this.height + " log2(n+1)="
+				+ String.format("%.2f", this.getIdealHeight()) + " nodes=" + this.nodes + " depth mean="
+				+ String.format("%.2f", this.getMeanDepth()) + " max=" + this.maxDepth + " rank diffs 1,1="
+				+ this.rankDiff11 + " 1,2=" + this.rankDiff12 + " 2,1=" + this.rankDiff21 + " other="
+				+ this.rankDiffOther + " inconsistent=" + this.inconsistentNodes + " (height="
+				+ this.heightMismatches + " size=" + this.sizeMismatches + " rank=" + this.rankMismatches
+				+ " unbalanced=" + this.unbalanced + ")";
+	}
+}
@@ -0,0 +1,616 @@
+import java.util.Arrays;
+
+/**
+ *
+ * ArrayAVLTree
+ *
+ * An AVL Tree with distinct integer keys and info, with the same operations as
+ * AVLTree. Nodes are not objects: a node is an int index into parallel arrays
+ * (key, left, right, parent, height, size), and the info of all nodes is kept
+ * in one Object[]. Index 0 is the virtual leaf (NIL).
+ *
+ * The arrays are owned by a Store, which grows by doubling and reuses freed
+ * slots through a free list. Trees returned by split share the store of the
+ * tree they came from, so split and join only relink indexes.
+ *
+ */
+public class ArrayAVLTree {
+
+	private static final int NIL = 0;
+	private static final int INITIAL_CAPACITY = 16;
+
+	private Store store;
+	private int root = NIL;
+	private int min = NIL;
+	private int max = NIL;
+
+	public ArrayAVLTree() {
+		this(new Store(INITIAL_CAPACITY));
+	}
+
+	/**
+	 * public ArrayAVLTree(int capacity)
+	 *
+	 * creates an empty tree whose store has room for capacity nodes before it
+	 * has to grow
+	 */
+	public ArrayAVLTree(int capacity) {
+		this(new Store(Math.max(capacity, 1)));
+	}
+
+	private ArrayAVLTree(Store store) {
+		this.store = store;
+	}
+
+	/**
+	 * public boolean empty()
+	 *
+	 * returns true if and only if the tree is empty
+	 *
+	 */
+	public boolean empty() {
+		return this.root == NIL;
+	}
+
+	/**
+	 * public int size()
+	 *
+	 * Returns the number of nodes in the tree.
+	 */
+	public int size() {
+		return this.store.size[this.root];
+	}
+
+	// returns the height of the tree, -1 if it's empty
+	public int getHeight() {
+		return this.store.height[this.root];
+	}
+
+	/**
+	 * public String search(int k)
+	 *
+	 * returns the info of an item with key k if it exists in the tree otherwise,
+	 * returns null
+	 */
+	public String search(int k) {
+		int node = this.searchNode(k);
+		return node == NIL ? null : (String) this.store.val[node];
+	}
+
+	private int searchNode(int k) {
+		int[] key = this.store.key;
+		int node = this.root;
+		while (node != NIL && key[node] != k) {
+			node = k < key[node] ? this.store.left[node] : this.store.right[node];
+		}
+		return node;
+	}
+
+	/**
+	 * public String min()
+	 *
+	 * Returns the info of the item with the smallest key in the tree, or null if
+	 * the tree is empty
+	 */
+	public String min() {
+		return this.min == NIL ? null : (String) this.store.val[this.min];
+	}
+
+	/**
+	 * public String max()
+	 *
+	 * Returns the info of the item with the largest key in the tree, or null if the
+	 * tree is empty
+	 */
+	public String max() {
+		return this.max == NIL ? null : (String) this.store.val[this.max];
+	}
+
+	/**
+	 * public int insert(int k, String i)
+	 *
+	 * inserts an item with key k and info i to the tree. returns the number of
+	 * rotations done while rebalancing (a double rotation counts as 2), or -1 if
+	 * an item with key k already exists in the tree.
+	 */
+	public int insert(int k, String i) {
+		Store s = this.store;
+		int parent = NIL;
+		int node = this.root;
+		while (node != NIL) {
+			if (k == s.key[node]) {
+				return -1;
+			}
+			parent = node;
+			node = k < s.key[node] ? s.left[node] : s.right[node];
+		}
+
+		int newNode = s.alloc(k, i); // may grow the arrays
+		s.parent[newNode] = parent;
+		if (parent == NIL) {
+			this.root = newNode;
+			this.min = newNode;
+			this.max = newNode;
+			return 0;
+		}
+		if (k < s.key[parent]) {
+			s.left[parent] = newNode;
+			if (k < s.key[this.min]) {
+				this.min = newNode;
+			}
+		} else {
+			s.right[parent] = newNode;
+			if (k > s.key[this.max]) {
+				this.max = newNode;
+			}
+		}
+		return this.rebalanceUp(parent);
+	}
+
+	/**
+	 * public int delete(int k)
+	 *
+	 * deletes an item with key k from the tree, if it is there. returns the number
+	 * of rotations done while rebalancing (a double rotation counts as 2), or -1
+	 * if an item with key k was not found in the tree.
+	 */
+	public int delete(int k) {
+		Store s = this.store;
+		int node = this.searchNode(k);
+		if (node == NIL) {
+			return -1;
+		}
+
+		if (s.left[node] != NIL && s.right[node] != NIL) {
+			// two children: move the successor's item here and unlink the successor
+			int successor = s.right[node];
+			while (s.left[successor] != NIL) {
+				successor = s.left[successor];
+			}
+			s.key[node] = s.key[successor];
+			s.val[node] = s.val[successor];
+			if (this.max == successor) {
+				this.max = node;
+			}
+			node = successor;
+		} else {
+			// the min and the max never have two children, so they are unlinked here
+			if (this.min == node) {
+				this.min = s.right[node] != NIL ? s.leftmost(s.right[node]) : s.parent[node];
+			}
+			if (this.max == node) {
+				this.max = s.left[node] != NIL ? s.rightmost(s.left[node]) : s.parent[node];
+			}
+		}
+
+		int child = s.left[node] != NIL ? s.left[node] : s.right[node];
+		int parent = s.parent[node];
+		this.replaceChild(parent, node, child);
+		s.free(node);
+		return this.rebalanceUp(parent);
+	}
+
+	/**
+	 * public int[] keysToArray()
+	 *
+	 * Returns a sorted array which contains all keys in the tree, or an empty array
+	 * if the tree is empty.
+	 */
+	public int[] keysToArray() {
+		Store s = this.store;
+		int[] keys = new int[this.size()];
+		int i = 0;
+		for (int node = this.min; node != NIL; node = s.successor(node)) {
+			keys[i++] = s.key[node];
+		}
+		return keys;
+	}
+
+	/**
+	 * public String[] infoToArray()
+	 *
+	 * Returns an array which contains all info in the tree, sorted by their
+	 * respective keys, or an empty array if the tree is empty.
+	 */
+	public String[] infoToArray() {
+		Store s = this.store;
+		String[] info = new String[this.size()];
+		int i = 0;
+		for (int node = this.min; node != NIL; node = s.successor(node)) {
+			info[i++] = (String) s.val[node];
+		}
+		return info;
+	}
+
+	/**
+	 * public ArrayAVLTree[] split(int x)
+	 *
+	 * splits the tree into 2 trees according to the key x. Returns an array [t1,
+	 * t2] with two trees, keys(t1) < x < keys(t2). The item with key x, if there
+	 * is one, is removed. Both trees share this tree's store and no node is
+	 * copied; this tree is left empty.
+	 */
+	public ArrayAVLTree[] split(int x) {
+		Store s = this.store;
+		int smaller = NIL;
+		int bigger = NIL;
+
+		int node = this.root;
+		int last = NIL;
+		while (node != NIL && s.key[node] != x) {
+			last = node;
+			node = x < s.key[node] ? s.left[node] : s.right[node];
+		}
+
+		int pNode = last;
+		if (node != NIL) { // x is in the tree: its subtrees are the base of the 2 new trees
+			pNode = s.parent[node];
+			smaller = s.detach(s.left[node]);
+			bigger = s.detach(s.right[node]);
+			s.free(node);
+		}
+
+		while (pNode != NIL) {
+			int next = s.parent[pNode];
+			if (s.key[pNode] < x) {
+				smaller = this.join(s.detach(s.left[pNode]), pNode, smaller);
+			} else {
+				bigger = this.join(bigger, pNode, s.detach(s.right[pNode]));
+			}
+			pNode = next;
+		}
+
+		this.root = NIL;
+		this.min = NIL;
+		this.max = NIL;
+		return new ArrayAVLTree[] { this.subTree(smaller), this.subTree(bigger) };
+	}
+
+	/**
+	 * public int join(int k, String i, ArrayAVLTree t)
+	 *
+	 * joins t and a new item (k, i) with the tree. Returns the complexity of the
+	 * operation (|tree.height - t.height| + 1). precondition: keys(t) < k <
+	 * keys() or keys(t) > k > keys(). t is left empty. If t does not share this
+	 * tree's store its nodes are first copied into it, in O(|t|).
+	 */
+	public int join(int k, String i, ArrayAVLTree t) {
+		int complexity = Math.abs(this.getHeight() - t.getHeight()) + 1;
+		if (t.store != this.store) {
+			t.moveTo(this.store);
+		}
+		Store s = this.store;
+		int x = s.alloc(k, i);
+
+		boolean tSmaller = t.empty() ? this.empty() || k < s.key[this.root] : s.key[t.root] < k;
+		if (tSmaller) {
+			this.min = t.empty() ? x : t.min;
+			this.max = this.empty() ? x : this.max;
+			this.root = this.join(t.root, x, this.root);
+		} else {
+			this.min = this.empty() ? x : this.min;
+			this.max = t.empty() ? x : t.max;
+			this.root = this.join(this.root, x, t.root);
+		}
+		t.root = NIL;
+		t.min = NIL;
+		t.max = NIL;
+		return complexity;
+	}
+
+	/**
+	 * joins the detached subtrees l and r through the detached node x, where
+	 * keys(l) < key(x) < keys(r). returns the root of the joined subtree. this.root
+	 * is used as scratch space, callers overwrite it.
+	 */
+	private int join(int l, int x, int r) {
+		Store s = this.store;
+		int hl = s.height[l];
+		int hr = s.height[r];
+
+		if (Math.abs(hl - hr) <= 1) {
+			s.link(x, l, r);
+			s.parent[x] = NIL;
+			return x;
+		}
+
+		int parent = NIL;
+		int node;
+		if (hl > hr) {
+			// walk down the right spine of l to the first subtree of height <= hr+1
+			node = l;
+			while (s.height[node] > hr + 1) {
+				parent = node;
+				node = s.right[node];
+			}
+			s.link(x, node, r);
+			s.right[parent] = x;
+		} else {
+			node = r;
+			while (s.height[node] > hl + 1) {
+				parent = node;
+				node = s.left[node];
+			}
+			s.link(x, l, node);
+			s.left[parent] = x;
+		}
+		s.parent[x] = parent;
+		this.rebalanceUp(parent); // leaves the top of the joined subtree in this.root
+		return this.root;
+	}
+
+	/**
+	 * private int rebalanceUp(int node)
+	 *
+	 * updates height and size on the path from node to the root, rotating where
+	 * the AVL invariant is broken. returns the number of rotations
+	 */
+	private int rebalanceUp(int node) {
+		int rotations = 0;
+		Store s = this.store;
+		while (node != NIL) {
+			s.update(node);
+			int balance = s.height[s.left[node]] - s.height[s.right[node]];
+			if (balance > 1) {
+				int l = s.left[node];
+				if (s.height[s.left[l]] < s.height[s.right[l]]) {
+					this.rotateLeft(l);
+					rotations++;
+				}
+				node = this.rotateRight(node);
+				rotations++;
+			} else if (balance < -1) {
+				int r = s.right[node];
+				if (s.height[s.right[r]] < s.height[s.left[r]]) {
+					this.rotateRight(r);
+					rotations++;
+				}
+				node = this.rotateLeft(node);
+				rotations++;
+			}
+			if (s.parent[node] == NIL) {
+				this.root = node;
+			}
+			node = s.parent[node];
+		}
+		return rotations;
+	}
+
+	private int rotateRight(int node) {
+		Store s = this.store;
+		int leftNode = s.left[node];
+		this.replaceChild(s.parent[node], node, leftNode);
+		s.left[node] = s.right[leftNode];
+		if (s.right[leftNode] != NIL) {
+			s.parent[s.right[leftNode]] = node;
+		}
+		s.right[leftNode] = node;
+		s.parent[node] = leftNode;
+		s.update(node);
+		s.update(leftNode);
+		return leftNode;
+	}
+
+	private int rotateLeft(int node) {
+		Store s = this.store;
+		int rightNode = s.right[node];
+		this.replaceChild(s.parent[node], node, rightNode);
+		s.right[node] = s.left[rightNode];
+		if (s.left[rightNode] != NIL) {
+			s.parent[s.left[rightNode]] = node;
+		}
+		s.left[rightNode] = node;
+		s.parent[node] = rightNode;
+		s.update(node);
+		s.update(rightNode);
+		return rightNode;
+	}
+
+	// puts child where oldChild was under parent (or at the root if parent is NIL)
+	private void replaceChild(int parent, int oldChild, int child) {
+		Store s = this.store;
+		if (child != NIL) {
+			s.parent[child] = parent;
+		}
+		if (parent == NIL) {
+			this.root = child;
+		} else if (s.left[parent] == oldChild) {
+			s.left[parent] = child;
+		} else {
+			s.right[parent] = child;
+		}
+	}
+
+	// a tree over the detached subtree rooted at node, sharing this tree's store
+	private ArrayAVLTree subTree(int node) {
+		ArrayAVLTree tree = new ArrayAVLTree(this.store);
+		tree.root = node;
+		if (node != NIL) {
+			tree.min = this.store.leftmost(node);
+			tree.max = this.store.rightmost(node);
+		}
+		return tree;
+	}
+
+	// copies the nodes of this tree into target, keeping the shape, and frees them here
+	private void moveTo(Store target) {
+		if (this.empty()) {
+			this.store = target;
+			return;
+		}
+		Store s = this.store;
+		int newRoot = target.alloc(s.key[this.root], s.val[this.root]);
+		target.height[newRoot] = s.height[this.root];
+		target.size[newRoot] = s.size[this.root];
+
+		// walk both trees in pre-order, cutting every original off its parent once it
+		// and its subtree are copied
+		int node = this.root;
+		int copy = newRoot;
+		while (node != NIL) {
+			if (s.left[node] != NIL) {
+				node = s.left[node];
+				copy = target.copyChild(copy, true, s, node);
+			} else if (s.right[node] != NIL) {
+				node = s.right[node];
+				copy = target.copyChild(copy, false, s, node);
+			} else {
+				int parent = s.parent[node];
+				s.free(node);
+				if (node == this.root) {
+					break;
+				}
+				if (s.left[parent] == node) {
+					s.left[parent] = NIL;
+				} else {
+					s.right[parent] = NIL;
+				}
+				node = parent;
+				copy = target.parent[copy];
+			}
+		}
+
+		this.store = target;
+		this.root = newRoot;
+		this.min = target.leftmost(newRoot);
+		this.max = target.rightmost(newRoot);
+	}
+
+	/**
+	 * private static class Store
+	 *
+	 * the parallel arrays holding the nodes of one or more trees. slot 0 is NIL:
+	 * height -1, size 0, and it is never written to. freed slots are chained
+	 * through left[] and reused before the arrays grow.
+	 */
+	private static final class Store {
+		private int[] key;
+		private int[] left;
+		private int[] right;
+		private int[] parent;
+		private int[] height;
+		private int[] size;
+		private Object[] val;
+		private int next = 1; // first slot that was never used
+		private int freeList = NIL;
+
+		private Store(int capacity) {
+			capacity++; // slot 0 is NIL
+			this.key = new int[capacity];
+			this.left = new int[capacity];
+			this.right = new int[capacity];
+			this.parent = new int[capacity];
+			this.height = new int[capacity];
+			this.size = new int[capacity];
+			this.val = new Object[capacity];
+			this.height[NIL] = -1;
+		}
+
+		private int alloc(int k, Object v) {
+			int node;
+			if (this.freeList != NIL) {
+				node = this.freeList;
+				this.freeList = this.left[node];
+			} else {
+				if (this.next == this.key.length) {
+					this.grow();
+				}
+				node = this.next++;
+			}
+			this.key[node] = k;
+			this.val[node] = v;
+			this.left[node] = NIL;
+			this.right[node] = NIL;
+			this.parent[node] = NIL;
+			this.height[node] = 0;
+			this.size[node] = 1;
+			return node;
+		}
+
+		private void free(int node) {
+			this.val[node] = null;
+			this.left[node] = this.freeList;
+			this.freeList = node;
+		}
+
+		private void grow() {
+			int capacity = this.key.length * 2;
+			this.key = Arrays.copyOf(this.key, capacity);
+			this.left = Arrays.copyOf(this.left, capacity);
+			this.right = Arrays.copyOf(this.right, capacity);
+			this.parent = Arrays.copyOf(this.parent, capacity);
+			this.height = Arrays.copyOf(this.height, capacity);
+			this.size = Arrays.copyOf(this.size, capacity);
+			this.val = Arrays.copyOf(this.val, capacity);
+		}
+
+		// update node's height and size from its children
+		private void update(int node) {
+			int l = this.left[node];
+			int r = this.right[node];
+			this.height[node] = 1 + Math.max(this.height[l], this.height[r]);
+			this.size[node] = 1 + this.size[l] + this.size[r];
+		}
+
+		// makes l and r the children of x and updates x
+		private void link(int x, int l, int r) {
+			this.left[x] = l;
+			this.right[x] = r;
+			if (l != NIL) {
+				this.parent[l] = x;
+			}
+			if (r != NIL) {
+				this.parent[r] = x;
+			}
+			this.update(x);
+		}
+
+		// cuts node off its parent so it can be used as the root of a subtree
+		private int detach(int node) {
+			if (node != NIL) {
+				this.parent[node] = NIL;
+			}
+			return node;
+		}
+
+		private int leftmost(int node) {
+			while (this.left[node] != NIL) {
+				node = this.left[node];
+			}
+			return node;
+		}
+
+		private int rightmost(int node) {
+			while (this.right[node] != NIL) {
+				node = this.right[node];
+			}
+			return node;
+		}
+
+		private int successor(int node) {
+			if (this.right[node] != NIL) {
+				return this.leftmost(this.right[node]);
+			}
+			int parent = this.parent[node];
+			while (parent != NIL && this.right[parent] == node) {
+				node = parent;
+				parent = this.parent[node];
+			}
+			return parent;
+		}
+
+		// allocates a copy of from's node under copyParent, on the left or right side
+		private int copyChild(int copyParent, boolean isLeft, Store from, int node) {
+			int copy = this.alloc(from.key[node], from.val[node]);
+			this.height[copy] = from.height[node];
+			this.size[copy] = from.size[node];
+			this.parent[copy] = copyParent;
+			if (isLeft) {
+				this.left[copyParent] = copy;
+			} else {
+				this.right[copyParent] = copy;
+			}
+			return copy;
+		}
+	}
+}
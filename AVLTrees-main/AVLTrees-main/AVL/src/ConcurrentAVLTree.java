@@ -0,0 +1,420 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ *
+ * ConcurrentAVLTree
+ *
+ * A thread safe facade over AVLTree for read-mostly use. Writes (insert,
+ * delete, split, join) take the write lock. Reads first run as optimistic
+ * StampedLock reads: they take no lock, walk the tree, and keep the result only
+ * if no write happened meanwhile (validate). Otherwise they run again under the
+ * read lock. Readers therefore do not write to shared memory and scale across
+ * threads while there is no writer.
+ *
+ * An optimistic read may see the tree in the middle of a rotation, so every
+ * walk here is bounded by MAX_STEPS, and an exception it hits means "try again
+ * under the read lock" unless validate shows that no write happened, in which
+ * case it is rethrown. The reads under the read lock run the same walks on the
+ * root rather than AVLTree's own reads, which may write to the tree (empty()
+ * clears a virtual root).
+ *
+ */
+public class ConcurrentAVLTree {
+
+	// an AVL tree of 2^31 nodes is less than 45 levels deep, so a walk this long saw a broken tree
+	private static final int MAX_STEPS = 128;
+	private static final int OPTIMISTIC_TRIES = 2;
+	private static final AtomicLong IDS = new AtomicLong();
+	// returned by the bounded walks when they ran out of steps
+	private static final AVLTree.IAVLNode RETRY_NODE = new AVLTree().new AVLNode();
+
+	private final StampedLock lock = new StampedLock();
+	private final long id = IDS.getAndIncrement(); // lock order for join
+	private AVLTree tree;
+
+	public ConcurrentAVLTree() {
+		this(new AVLTree());
+	}
+
+	private ConcurrentAVLTree(AVLTree tree) {
+		this.tree = tree;
+	}
+
+	/**
+	 * public String search(int k)
+	 *
+	 * returns the info of an item with key k if it exists in the tree otherwise,
+	 * returns null
+	 */
+	public String search(int k) {
+		for (int i = 0; i < OPTIMISTIC_TRIES; i++) {
+			long stamp = this.lock.tryOptimisticRead();
+			if (stamp == 0) {
+				continue;
+			}
+			try {
+				AVLTree.IAVLNode node = this.find(this.tree.getRoot(), k);
+				if (node != RETRY_NODE) {
+					String info = node == null ? null : node.getValue();
+					if (this.lock.validate(stamp)) {
+						return info;
+					}
+				}
+			} catch (RuntimeException e) {
+				if (this.lock.validate(stamp)) {
+					throw e; // no write happened, so the tree was not torn
+				}
+				// torn read during a write, retry
+			}
+		}
+		long stamp = this.lock.readLock();
+		try {
+			AVLTree.IAVLNode node = this.find(this.tree.getRoot(), k);
+			return node == null ? null : node.getValue();
+		} finally {
+			this.lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * public String min() / max()
+	 *
+	 * Returns the info of the item with the smallest / largest key in the tree, or
+	 * null if the tree is empty
+	 */
+	public String min() {
+		return this.edge(true);
+	}
+
+	public String max() {
+		return this.edge(false);
+	}
+
+	/**
+	 * public int size()
+	 *
+	 * Returns the number of nodes in the tree.
+	 */
+	public int size() {
+		for (int i = 0; i < OPTIMISTIC_TRIES; i++) {
+			long stamp = this.lock.tryOptimisticRead();
+			AVLTree.IAVLNode root = this.tree.getRoot();
+			int size = root == null ? 0 : root.getSize();
+			if (stamp != 0 && this.lock.validate(stamp)) {
+				return size;
+			}
+		}
+		long stamp = this.lock.readLock();
+		try {
+			AVLTree.IAVLNode root = this.tree.getRoot();
+			return root == null ? 0 : root.getSize();
+		} finally {
+			this.lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * public int countRange(int lo, int hi)
+	 *
+	 * Returns the number of keys k in the tree with lo <= k <= hi.
+	 */
+	public int countRange(int lo, int hi) {
+		if (lo > hi) {
+			return 0;
+		}
+		for (int i = 0; i < OPTIMISTIC_TRIES; i++) {
+			long stamp = this.lock.tryOptimisticRead();
+			if (stamp == 0) {
+				continue;
+			}
+			try {
+				AVLTree.IAVLNode root = this.tree.getRoot();
+				int upTo = this.countSmaller(root, hi, true);
+				int below = this.countSmaller(root, lo, false);
+				if (upTo >= 0 && below >= 0 && this.lock.validate(stamp)) {
+					return upTo - below;
+				}
+			} catch (RuntimeException e) {
+				if (this.lock.validate(stamp)) {
+					throw e; // no write happened, so the tree was not torn
+				}
+				// torn read during a write, retry
+			}
+		}
+		long stamp = this.lock.readLock();
+		try {
+			AVLTree.IAVLNode root = this.tree.getRoot();
+			return this.countSmaller(root, hi, true) - this.countSmaller(root, lo, false);
+		} finally {
+			this.lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * public int[] rangeToArray(int lo, int hi)
+	 *
+	 * Returns a sorted array of the keys k in the tree with lo <= k <= hi.
+	 */
+	public int[] rangeToArray(int lo, int hi) {
+		for (int i = 0; i < OPTIMISTIC_TRIES; i++) {
+			long stamp = this.lock.tryOptimisticRead();
+			if (stamp == 0) {
+				continue;
+			}
+			try {
+				int[] keys = this.walkRange(this.tree.getRoot(), lo, hi);
+				if (keys != null && this.lock.validate(stamp)) {
+					return keys;
+				}
+			} catch (RuntimeException e) {
+				if (this.lock.validate(stamp)) {
+					throw e; // no write happened, so the tree was not torn
+				}
+				// torn read during a write, retry
+			}
+		}
+		long stamp = this.lock.readLock();
+		try {
+			return this.walkRange(this.tree.getRoot(), lo, hi);
+		} finally {
+			this.lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * public void forEachInRange(int lo, int hi, AVLTree.IntObjConsumer action)
+	 *
+	 * calls action for every item with lo <= key <= hi, in increasing key order.
+	 * an action cannot be taken back if the read turns out to be torn, so this
+	 * read always holds the read lock.
+	 */
+	public void forEachInRange(int lo, int hi, AVLTree.IntObjConsumer action) {
+		long stamp = this.lock.readLock();
+		try {
+			if (lo > hi) {
+				return;
+			}
+			for (AVLTree.IAVLNode node = this.ceiling(this.tree.getRoot(), lo); node != null
+					&& node.getKey() <= hi; node = this.successor(node)) {
+				action.accept(node.getKey(), node.getValue());
+			}
+		} finally {
+			this.lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * public int insert(int k, String i)
+	 *
+	 * AVLTree.insert under the write lock.
+	 */
+	public int insert(int k, String i) {
+		long stamp = this.lock.writeLock();
+		try {
+			return this.tree.insert(k, i);
+		} finally {
+			this.lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * public int delete(int k)
+	 *
+	 * AVLTree.delete under the write lock.
+	 */
+	public int delete(int k) {
+		long stamp = this.lock.writeLock();
+		try {
+			return this.tree.delete(k);
+		} finally {
+			this.lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * public ConcurrentAVLTree[] split(int x)
+	 *
+	 * AVLTree.split under the write lock. the items move to the two returned
+	 * trees and this tree is left empty.
+	 */
+	public ConcurrentAVLTree[] split(int x) {
+		long stamp = this.lock.writeLock();
+		try {
+			AVLTree[] parts = this.tree.split(x);
+			this.tree = new AVLTree();
+			return new ConcurrentAVLTree[] { new ConcurrentAVLTree(parts[0]), new ConcurrentAVLTree(parts[1]) };
+		} finally {
+			this.lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * public int join(int k, String i, ConcurrentAVLTree t)
+	 *
+	 * AVLTree.join of t and a new item (k, i) with this tree, holding the write
+	 * locks of both trees. t is left empty.
+	 */
+	public int join(int k, String i, ConcurrentAVLTree t) {
+		if (t == this) {
+			throw new IllegalArgumentException("cannot join a tree with itself");
+		}
+		ConcurrentAVLTree first = this.id < t.id ? this : t; // same lock order for every pair
+		ConcurrentAVLTree second = first == this ? t : this;
+		long firstStamp = first.lock.writeLock();
+		try {
+			long secondStamp = second.lock.writeLock();
+			try {
+				int result = this.tree.join(this.tree.new AVLNode(k, i), t.tree);
+				t.tree = new AVLTree();
+				return result;
+			} finally {
+				second.lock.unlockWrite(secondStamp);
+			}
+		} finally {
+			first.lock.unlockWrite(firstStamp);
+		}
+	}
+
+	// the node with key k under root, null if there is none, or RETRY_NODE
+	private AVLTree.IAVLNode find(AVLTree.IAVLNode node, int k) {
+		for (int steps = 0; steps < MAX_STEPS; steps++) {
+			if (node == null || !node.isRealNode()) {
+				return null;
+			}
+			int key = node.getKey();
+			if (key == k) {
+				return node;
+			}
+			node = k < key ? node.getLeft() : node.getRight();
+		}
+		return RETRY_NODE;
+	}
+
+	// the number of keys < k (<= k if inclusive) under node, or -1 if the walk ran out of steps
+	private int countSmaller(AVLTree.IAVLNode node, int k, boolean inclusive) {
+		int count = 0;
+		for (int steps = 0; steps < MAX_STEPS; steps++) {
+			if (node == null || !node.isRealNode()) {
+				return count;
+			}
+			if (k < node.getKey() || (k == node.getKey() && !inclusive)) {
+				node = node.getLeft();
+			} else {
+				count += node.getLeft().getSize() + 1;
+				if (k == node.getKey()) {
+					return count;
+				}
+				node = node.getRight();
+			}
+		}
+		return -1;
+	}
+
+	// rangeToArray with bounded steps, or null if the walk ran out of steps or its counts cannot be right
+	private int[] walkRange(AVLTree.IAVLNode root, int lo, int hi) {
+		if (lo > hi) {
+			return new int[0];
+		}
+		int upTo = this.countSmaller(root, hi, true);
+		int below = this.countSmaller(root, lo, false);
+		int size = root == null || !root.isRealNode() ? 0 : root.getSize();
+		if (upTo < 0 || below < 0 || upTo < below || upTo > size) {
+			return null; // a torn read: the counts do not fit in the tree, allocating them could run out of memory
+		}
+		int[] keys = new int[upTo - below];
+		AVLTree.IAVLNode node = this.ceiling(root, lo);
+		for (int i = 0; i < keys.length; i++) {
+			if (node == null || node == RETRY_NODE) {
+				return null;
+			}
+			keys[i] = node.getKey();
+			node = this.successor(node);
+		}
+		return keys;
+	}
+
+	// the node with the smallest key >= k under node, null if there is none, or RETRY_NODE
+	private AVLTree.IAVLNode ceiling(AVLTree.IAVLNode node, int k) {
+		AVLTree.IAVLNode ceiling = null;
+		for (int steps = 0; steps < MAX_STEPS; steps++) {
+			if (node == null || !node.isRealNode()) {
+				return ceiling;
+			}
+			if (node.getKey() >= k) {
+				ceiling = node;
+				node = node.getLeft();
+			} else {
+				node = node.getRight();
+			}
+		}
+		return RETRY_NODE;
+	}
+
+	// the in-order successor of node, null if there is none, or RETRY_NODE
+	private AVLTree.IAVLNode successor(AVLTree.IAVLNode node) {
+		AVLTree.IAVLNode right = node.getRight();
+		if (right.isRealNode()) {
+			for (int steps = 0; steps < MAX_STEPS; steps++) {
+				if (!right.getLeft().isRealNode()) {
+					return right;
+				}
+				right = right.getLeft();
+			}
+			return RETRY_NODE;
+		}
+		AVLTree.IAVLNode parent = node.getParent();
+		for (int steps = 0; steps < MAX_STEPS; steps++) {
+			if (parent == null || parent.getRight() != node) {
+				return parent;
+			}
+			node = parent;
+			parent = node.getParent();
+		}
+		return RETRY_NODE;
+	}
+
+	// min() or max(): the info of the leftmost or rightmost node
+	private String edge(boolean leftmost) {
+		for (int i = 0; i < OPTIMISTIC_TRIES; i++) {
+			long stamp = this.lock.tryOptimisticRead();
+			if (stamp == 0) {
+				continue;
+			}
+			try {
+				AVLTree.IAVLNode node = this.edgeNode(this.tree.getRoot(), leftmost);
+				if (node != RETRY_NODE) {
+					String info = node == null ? null : node.getValue();
+					if (this.lock.validate(stamp)) {
+						return info;
+					}
+				}
+			} catch (RuntimeException e) {
+				if (this.lock.validate(stamp)) {
+					throw e; // no write happened, so the tree was not torn
+				}
+				// torn read during a write, retry
+			}
+		}
+		long stamp = this.lock.readLock();
+		try {
+			AVLTree.IAVLNode node = this.edgeNode(this.tree.getRoot(), leftmost);
+			return node == null ? null : node.getValue();
+		} finally {
+			this.lock.unlockRead(stamp);
+		}
+	}
+
+	// the leftmost or rightmost node under node, null if there is none, or RETRY_NODE
+	private AVLTree.IAVLNode edgeNode(AVLTree.IAVLNode node, boolean leftmost) {
+		AVLTree.IAVLNode last = null;
+		for (int steps = 0; steps < MAX_STEPS; steps++) {
+			if (node == null || !node.isRealNode()) {
+				return last;
+			}
+			last = node;
+			node = leftmost ? node.getLeft() : node.getRight();
+		}
+		return RETRY_NODE;
+	}
+}
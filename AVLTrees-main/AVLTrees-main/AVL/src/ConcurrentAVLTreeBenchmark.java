@@ -0,0 +1,316 @@
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ *
+ * ConcurrentAVLTreeBenchmark
+ *
+ * Throughput of the thread safe trees against the number of threads:
+ * ConcurrentAVLTree (one lock, optimistic reads), FineGrainedAVLTree (per node
+ * locks, lock-free reads), an AVLTree behind a single monitor and
+ * ConcurrentSkipListMap. Every thread runs random operations for a fixed time:
+ * searches of random keys (half of them present), and with -updates p, p% of
+ * the operations insert or delete a random odd key instead. With -writers 1
+ * another thread keeps inserting and deleting keys on top of that, which is
+ * what makes optimistic reads fail and retry.
+ *
+ * Reports total and per-thread operations per microsecond (the extra writer
+ * thread is not counted). Like AVLTreeBenchmark the harness is plain JDK; run
+ * it on a machine with at least as many cores as the largest thread count, or
+ * the numbers only show time slicing.
+ *
+ * usage: java ConcurrentAVLTreeBenchmark [-threads 1,2,4,8] [-n 1000000]
+ *                                        [-millis 2000] [-writers 0,1]
+ *                                        [-updates 0,50]
+ *                                        [-structures FineGrainedAVLTree]
+ *
+ */
+public class ConcurrentAVLTreeBenchmark {
+
+	static final int[] THREADS = { 1, 2, 4, 8 };
+	static final int[] WRITERS = { 0, 1 };
+	static final int[] UPDATES = { 0, 50 };
+
+	private static volatile long blackhole;
+
+	public static void main(String[] args) throws InterruptedException {
+		int[] threads = THREADS;
+		int[] writers = WRITERS;
+		int[] updates = UPDATES;
+		int n = 1000000;
+		int millis = 2000;
+		List<String> structures = null;
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			List<String> values = Arrays.asList(args[i + 1].split(","));
+			if (args[i].equals("-threads")) {
+				threads = ints(values);
+			} else if (args[i].equals("-writers")) {
+				writers = ints(values);
+			} else if (args[i].equals("-updates")) {
+				updates = ints(values);
+			} else if (args[i].equals("-n")) {
+				n = (int) Double.parseDouble(values.get(0)); // allows 1e6
+			} else if (args[i].equals("-millis")) {
+				millis = Integer.parseInt(values.get(0));
+			} else if (args[i].equals("-structures")) {
+				structures = values;
+			}
+		}
+
+		System.out.printf("%-22s %7s %7s %7s %12s %12s%n", "structure", "updates", "threads", "writers", "ops/us",
+				"ops/us/thr");
+		for (Structure structure : structures()) {
+			if (structures != null && !structures.contains(structure.name())) {
+				continue;
+			}
+			for (int u : updates) {
+				for (int w : writers) {
+					for (int t : threads) {
+						structure.fill(n);
+						run(structure, n, 1, u, w, millis / 4); // warmup
+						double perMicro = run(structure, n, t, u, w, millis);
+						System.out.printf("%-22s %6d%% %7d %7d %12.2f %12.2f%n", structure.name(), u, t, w, perMicro,
+								perMicro / t);
+					}
+				}
+			}
+		}
+		System.out.println("# blackhole " + blackhole);
+	}
+
+	// runs the threads (and writers) for millis ms, returns the operations per microsecond of all threads together
+	private static double run(final Structure structure, final int n, int threads, final int updates, int writers,
+			int millis) throws InterruptedException {
+		final AtomicBoolean stop = new AtomicBoolean();
+		final CountDownLatch start = new CountDownLatch(1);
+		final long[] counts = new long[threads];
+		Thread[] all = new Thread[threads + writers];
+		for (int i = 0; i < threads; i++) {
+			final int id = i;
+			all[i] = new Thread() {
+				public void run() {
+					ThreadLocalRandom random = ThreadLocalRandom.current();
+					long ops = 0;
+					long found = 0;
+					await(start);
+					while (!stop.get()) {
+						for (int j = 0; j < 64; j++) { // check the flag once per batch
+							if (random.nextInt(100) >= updates) {
+								if (structure.search(random.nextInt(2 * n)) != null) {
+									found++;
+								}
+							} else if (random.nextBoolean()) {
+								structure.insert(2 * random.nextInt(n) + 1);
+							} else {
+								structure.delete(2 * random.nextInt(n) + 1);
+							}
+						}
+						ops += 64;
+					}
+					counts[id] = ops;
+					blackhole += found;
+				}
+			};
+		}
+		for (int i = threads; i < all.length; i++) {
+			all[i] = new Thread() {
+				public void run() {
+					ThreadLocalRandom random = ThreadLocalRandom.current();
+					await(start);
+					while (!stop.get()) {
+						int k = 2 * random.nextInt(n) + 1; // odd keys, so the read set stays the same
+						structure.insert(k);
+						structure.delete(k);
+					}
+				}
+			};
+		}
+		for (Thread thread : all) {
+			thread.start();
+		}
+		long begin = System.nanoTime();
+		start.countDown();
+		Thread.sleep(millis);
+		stop.set(true);
+		for (Thread thread : all) {
+			thread.join();
+		}
+		long elapsed = System.nanoTime() - begin;
+		long ops = 0;
+		for (long count : counts) {
+			ops += count;
+		}
+		return ops / (elapsed / 1000.0);
+	}
+
+	private static void await(CountDownLatch latch) {
+		try {
+			latch.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static int[] ints(List<String> values) {
+		int[] result = new int[values.size()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = Integer.parseInt(values.get(i));
+		}
+		return result;
+	}
+
+	private static Structure[] structures() {
+		return new Structure[] { new ConcurrentAVLTreeStructure(), new FineGrainedAVLTreeStructure(),
+				new SynchronizedAVLTreeStructure(), new SkipListStructure() };
+	}
+
+	// the keys 0, 2, .., 2n - 2 in shuffled order
+	private static int[] evenKeys(int n) {
+		int[] keys = new int[n];
+		for (int i = 0; i < n; i++) {
+			keys[i] = 2 * i;
+		}
+		Random random = new Random(n);
+		for (int i = n - 1; i > 0; i--) {
+			int j = random.nextInt(i + 1);
+			int temp = keys[i];
+			keys[i] = keys[j];
+			keys[j] = temp;
+		}
+		return keys;
+	}
+
+	/**
+	 * a thread safe tree under test, filled with the even keys below 2n
+	 */
+	abstract static class Structure {
+		abstract String name();
+
+		abstract void fill(int n);
+
+		abstract String search(int k);
+
+		abstract void insert(int k);
+
+		abstract void delete(int k);
+	}
+
+	static class ConcurrentAVLTreeStructure extends Structure {
+		private ConcurrentAVLTree tree;
+
+		String name() {
+			return "ConcurrentAVLTree";
+		}
+
+		void fill(int n) {
+			this.tree = new ConcurrentAVLTree();
+			for (int k : evenKeys(n)) {
+				this.tree.insert(k, "v");
+			}
+		}
+
+		String search(int k) {
+			return this.tree.search(k);
+		}
+
+		void insert(int k) {
+			this.tree.insert(k, "v");
+		}
+
+		void delete(int k) {
+			this.tree.delete(k);
+		}
+	}
+
+	static class FineGrainedAVLTreeStructure extends Structure {
+		private FineGrainedAVLTree tree;
+
+		String name() {
+			return "FineGrainedAVLTree";
+		}
+
+		void fill(int n) {
+			this.tree = new FineGrainedAVLTree();
+			for (int k : evenKeys(n)) {
+				this.tree.insert(k, "v");
+			}
+		}
+
+		String search(int k) {
+			return this.tree.search(k);
+		}
+
+		void insert(int k) {
+			this.tree.insert(k, "v");
+		}
+
+		void delete(int k) {
+			this.tree.delete(k);
+		}
+	}
+
+	static class SynchronizedAVLTreeStructure extends Structure {
+		private AVLTree tree;
+
+		String name() {
+			return "synchronized AVLTree";
+		}
+
+		void fill(int n) {
+			this.tree = new AVLTree();
+			for (int k : evenKeys(n)) {
+				this.tree.insert(k, "v");
+			}
+		}
+
+		String search(int k) {
+			synchronized (this) {
+				return this.tree.search(k);
+			}
+		}
+
+		void insert(int k) {
+			synchronized (this) {
+				this.tree.insert(k, "v");
+			}
+		}
+
+		void delete(int k) {
+			synchronized (this) {
+				this.tree.delete(k);
+			}
+		}
+	}
+
+	static class SkipListStructure extends Structure {
+		private ConcurrentSkipListMap<Integer, String> map;
+
+		String name() {
+			return "ConcurrentSkipListMap";
+		}
+
+		void fill(int n) {
+			this.map = new ConcurrentSkipListMap<Integer, String>();
+			for (int k : evenKeys(n)) {
+				this.map.put(k, "v");
+			}
+		}
+
+		String search(int k) {
+			return this.map.get(k);
+		}
+
+		void insert(int k) {
+			this.map.put(k, "v");
+		}
+
+		void delete(int k) {
+			this.map.remove(k);
+		}
+	}
+}
@@ -0,0 +1,645 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ *
+ * DurableAVLTree
+ *
+ * An AVLTree whose changes survive a crash: every insert, delete, split and
+ * join is appended to a write-ahead log, and returns only once the log is on
+ * disk. The tree is kept in a directory as
+ *
+ *   snapshot.<g>   the tree at some point, in the AVLTree.writeSnapshot format
+ *   log.<g>        the changes made since that snapshot
+ *
+ * open() loads the newest snapshot and replays its log on top of it. A torn
+ * record at the end of the log (a crash in the middle of a write) is detected
+ * by its CRC and cut off.
+ *
+ * Group commit: writers append their records to a shared buffer, and one
+ * flusher thread writes the buffer and calls FileChannel.force once for all of
+ * them. It flushes when batchSize records are waiting or the oldest one has
+ * waited intervalMicros, whichever comes first. A larger batch or interval
+ * means fewer forces and more throughput, at the price of latency.
+ *
+ * Compaction: once the log is larger than compactBytes, the flusher writes a
+ * new snapshot (generation g + 1) and starts an empty log. The snapshot is
+ * written under the tree's lock, so operations wait while it is written.
+ *
+ * Changes are visible before they are durable: a write changes the tree
+ * first and then waits for its record, so readers may see a change that a
+ * crash would still lose. If the log cannot be written the write throws
+ * IOException, but its change stays in the tree; the tree then refuses every
+ * later write, and after a restart only the changes whose writes returned are
+ * guaranteed to be there.
+ *
+ * All methods are thread safe; they run one at a time under one lock, except
+ * that writers wait for the disk without holding it. The directory belongs to
+ * the tree: other snapshot.* and log.* files in it are deleted.
+ *
+ */
+public class DurableAVLTree implements AutoCloseable {
+
+	private static final byte INSERT = 1;
+	private static final byte DELETE = 2;
+	private static final byte SPLIT = 3;
+	private static final byte JOIN = 4;
+
+	private static final String SNAPSHOT = "snapshot.";
+	private static final String LOG = "log.";
+
+	private final Path directory;
+	private final int batchSize;
+	private final long intervalNanos;
+	private final long compactBytes;
+
+	private final Object lock = new Object();
+	private final CRC32 crc = new CRC32();
+	private final Thread flusher;
+
+	// everything below is guarded by lock
+	private AVLTree tree;
+	private long generation;
+	private FileChannel log;
+	private long logSize;
+	private ByteBuffer pending = ByteBuffer.allocate(1 << 16); // records appended but not written yet
+	private int pendingCount;
+	private long pendingSince; // System.nanoTime() of the oldest pending record
+	private long appended; // sequence number of the last appended record
+	private long durable; // sequence number of the last record on disk
+	private IOException failure; // set when the log cannot be written, every later write fails
+	private boolean closed;
+
+	private DurableAVLTree(Path directory, int batchSize, long intervalMicros, long compactBytes) {
+		this.directory = directory;
+		this.batchSize = batchSize;
+		this.intervalNanos = TimeUnit.MICROSECONDS.toNanos(intervalMicros);
+		this.compactBytes = compactBytes;
+		this.flusher = new Thread("DurableAVLTree flusher " + directory) {
+			public void run() {
+				DurableAVLTree.this.flushLoop();
+			}
+		};
+		this.flusher.setDaemon(true);
+	}
+
+	/**
+	 * public static DurableAVLTree open(Path directory)
+	 *
+	 * open with a batch of up to 128 records, an interval of 1ms and compaction
+	 * when the log reaches 64MB
+	 */
+	public static DurableAVLTree open(Path directory) throws IOException {
+		return open(directory, 128, 1000, 64L << 20);
+	}
+
+	/**
+	 * public static DurableAVLTree open(Path directory, int batchSize, long intervalMicros, long compactBytes)
+	 *
+	 * opens the tree kept in directory, or creates an empty one. loads the newest
+	 * snapshot, replays its log, and deletes the files of older generations.
+	 */
+	public static DurableAVLTree open(Path directory, int batchSize, long intervalMicros, long compactBytes)
+			throws IOException {
+		if (batchSize < 1 || intervalMicros < 0 || compactBytes < 1) {
+			throw new IllegalArgumentException(
+					"batchSize " + batchSize + ", intervalMicros " + intervalMicros + ", compactBytes " + compactBytes);
+		}
+		boolean created = Files.notExists(directory);
+		Files.createDirectories(directory);
+		if (created && directory.toAbsolutePath().getParent() != null) {
+			forceDirectory(directory.toAbsolutePath().getParent());
+		}
+		long generation = -1;
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, SNAPSHOT + "*")) {
+			for (Path file : files) {
+				long g = generationOf(file, SNAPSHOT);
+				generation = Math.max(generation, g);
+			}
+		}
+
+		DurableAVLTree durableTree = new DurableAVLTree(directory, batchSize, intervalMicros, compactBytes);
+		if (generation < 0) {
+			generation = 0; // never compacted, the log holds everything
+			durableTree.tree = new AVLTree();
+		} else {
+			try (FileChannel channel = FileChannel.open(durableTree.snapshotFile(generation), StandardOpenOption.READ)) {
+				durableTree.tree = AVLTree.readSnapshot(channel);
+			}
+		}
+		durableTree.generation = generation;
+		durableTree.log = FileChannel.open(durableTree.logFile(generation), StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			forceDirectory(directory); // the log may be new, its entry must be durable before any record is
+			durableTree.logSize = durableTree.replay();
+			durableTree.log.truncate(durableTree.logSize); // cut off a torn record
+			durableTree.log.position(durableTree.logSize);
+			durableTree.deleteOtherGenerations();
+		} catch (IOException | RuntimeException e) { // replay throws on an unknown record type
+			durableTree.log.close();
+			throw e;
+		}
+		durableTree.flusher.start();
+		return durableTree;
+	}
+
+	/**
+	 * public void close()
+	 *
+	 * writes out the pending records, stops the flusher and closes the log.
+	 * Calling close() more than once has no effect.
+	 */
+	public void close() throws IOException {
+		synchronized (this.lock) {
+			if (this.closed) {
+				return;
+			}
+			this.closed = true;
+			this.lock.notifyAll();
+		}
+		boolean interrupted = false;
+		while (this.flusher.isAlive()) {
+			try {
+				this.flusher.join();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (this.lock) {
+			this.log.close();
+			if (this.failure != null) {
+				throw new IOException("write-ahead log failed", this.failure);
+			}
+		}
+	}
+
+	// the generation of the current snapshot and log
+	public long getGeneration() {
+		synchronized (this.lock) {
+			return this.generation;
+		}
+	}
+
+	public String search(int k) {
+		synchronized (this.lock) {
+			return this.tree.search(k);
+		}
+	}
+
+	public boolean empty() {
+		synchronized (this.lock) {
+			return this.tree.empty();
+		}
+	}
+
+	public int size() {
+		synchronized (this.lock) {
+			return this.tree.size();
+		}
+	}
+
+	public String min() {
+		synchronized (this.lock) {
+			return this.tree.min();
+		}
+	}
+
+	public String max() {
+		synchronized (this.lock) {
+			return this.tree.max();
+		}
+	}
+
+	public int[] keysToArray() {
+		synchronized (this.lock) {
+			return this.tree.keysToArray();
+		}
+	}
+
+	public String[] infoToArray() {
+		synchronized (this.lock) {
+			return this.tree.infoToArray();
+		}
+	}
+
+	/**
+	 * public int insert(int k, String i)
+	 *
+	 * AVLTree.insert, logged. returns once the insert is on disk (or right away
+	 * if k was already in the tree and nothing changed). the item is visible
+	 * before that, and stays in the tree if the log fails.
+	 */
+	public int insert(int k, String i) throws IOException {
+		byte[] info = encode(i);
+		synchronized (this.lock) {
+			this.ensureOpen();
+			int result = this.tree.insert(k, i);
+			if (result == -1) {
+				return -1;
+			}
+			ByteBuffer record = this.beginRecord(INSERT, 4 + length(info));
+			record.putInt(k);
+			putString(record, info);
+			this.awaitDurable(this.endRecord());
+			return result;
+		}
+	}
+
+	/**
+	 * public int delete(int k)
+	 *
+	 * AVLTree.delete, logged. returns once the delete is on disk (or right away
+	 * if k was not in the tree). like insert, the change is visible before that.
+	 */
+	public int delete(int k) throws IOException {
+		synchronized (this.lock) {
+			this.ensureOpen();
+			int result = this.tree.delete(k);
+			if (result == -1) {
+				return -1;
+			}
+			this.beginRecord(DELETE, 4).putInt(k);
+			this.awaitDurable(this.endRecord());
+			return result;
+		}
+	}
+
+	/**
+	 * public AVLTree[] split(int x)
+	 *
+	 * AVLTree.split, logged: the items move to the two returned trees, which are
+	 * plain AVLTrees, and this tree is left empty - already when split is
+	 * waiting for the disk, and also if the log fails.
+	 */
+	public AVLTree[] split(int x) throws IOException {
+		synchronized (this.lock) {
+			this.ensureOpen();
+			AVLTree[] parts = this.tree.split(x);
+			this.tree = new AVLTree();
+			this.beginRecord(SPLIT, 4).putInt(x);
+			this.awaitDurable(this.endRecord());
+			return parts;
+		}
+	}
+
+	/**
+	 * public int join(int k, String i, AVLTree t)
+	 *
+	 * AVLTree.join of t and a new item (k, i) with this tree, logged. the record
+	 * holds all the items of t, so it costs O(|t|). t must not be used
+	 * afterwards. like insert, the joined items are visible before they are
+	 * durable.
+	 */
+	public int join(int k, String i, AVLTree t) throws IOException {
+		byte[] info = encode(i);
+		int[] keys = t.keysToArray();
+		byte[][] infos = new byte[keys.length][];
+		int bytes = 4 + length(info) + 4 + 4 * keys.length;
+		String[] tInfos = t.infoToArray();
+		for (int j = 0; j < keys.length; j++) {
+			infos[j] = encode(tInfos[j]);
+			bytes += length(infos[j]);
+		}
+		synchronized (this.lock) {
+			this.ensureOpen();
+			int result = this.tree.join(this.tree.new AVLNode(k, i), t);
+			ByteBuffer record = this.beginRecord(JOIN, bytes);
+			record.putInt(k);
+			putString(record, info);
+			record.putInt(keys.length);
+			for (int key : keys) {
+				record.putInt(key);
+			}
+			for (byte[] tInfo : infos) {
+				putString(record, tInfo);
+			}
+			this.awaitDurable(this.endRecord());
+			return result;
+		}
+	}
+
+	/*
+	 * record layout (big endian): int body length, int CRC32 of the body, then the
+	 * body: the type byte and its fields. infos are an int length (-1 for null)
+	 * and UTF-8 bytes.
+	 *
+	 * INSERT k, info
+	 * DELETE k
+	 * SPLIT x
+	 * JOIN k, info, n, n keys of t, n infos of t
+	 */
+
+	// starts a record in pending with room for a body of 1 + bodyBytes bytes
+	private ByteBuffer beginRecord(byte type, int bodyBytes) {
+		int needed = 8 + 1 + bodyBytes;
+		if (this.pending.remaining() < needed) {
+			ByteBuffer larger = ByteBuffer.allocate(Math.max(2 * this.pending.capacity(), this.pending.position() + needed));
+			this.pending.flip();
+			larger.put(this.pending);
+			this.pending = larger;
+		}
+		this.pending.mark();
+		this.pending.putInt(0).putInt(0).put(type); // length and CRC are set by endRecord
+		return this.pending;
+	}
+
+	// finishes the record started by beginRecord, returns its sequence number
+	private long endRecord() {
+		int end = this.pending.position();
+		this.pending.reset();
+		int start = this.pending.position();
+		int length = end - start - 8;
+		this.crc.reset();
+		this.crc.update(this.pending.array(), this.pending.arrayOffset() + start + 8, length);
+		this.pending.putInt(length).putInt((int) this.crc.getValue());
+		this.pending.position(end);
+
+		this.pendingCount++;
+		if (this.pendingCount == 1) {
+			this.pendingSince = System.nanoTime();
+		}
+		if (this.pendingCount == 1 || this.pendingCount >= this.batchSize) {
+			this.lock.notifyAll(); // wake the flusher
+		}
+		return ++this.appended;
+	}
+
+	// waits, without holding the lock, until the record seq is on disk
+	private void awaitDurable(long seq) throws IOException {
+		boolean interrupted = false;
+		while (this.durable < seq) {
+			if (this.failure != null) {
+				throw new IOException("write-ahead log failed", this.failure);
+			}
+			try {
+				this.lock.wait();
+			} catch (InterruptedException e) {
+				interrupted = true; // the change is made, so wait for it anyway
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * private void flushLoop()
+	 *
+	 * the flusher thread: takes the pending records once there are batchSize of
+	 * them or the oldest is intervalNanos old, writes them, forces the log once,
+	 * and wakes the writers. compacts when the log is too large.
+	 */
+	private void flushLoop() {
+		ByteBuffer spare = ByteBuffer.allocate(this.pending.capacity());
+		while (true) {
+			ByteBuffer batch;
+			long batchEnd;
+			synchronized (this.lock) {
+				while (true) {
+					if (this.pendingCount == 0) {
+						if (this.closed) {
+							return;
+						}
+						this.waitUninterruptibly(0);
+						continue;
+					}
+					long wait = this.pendingSince + this.intervalNanos - System.nanoTime();
+					if (this.closed || this.pendingCount >= this.batchSize || wait <= 0) {
+						break;
+					}
+					this.waitUninterruptibly(wait);
+				}
+				batch = this.pending;
+				this.pending = spare;
+				this.pendingCount = 0;
+				batchEnd = this.appended;
+			}
+
+			try {
+				batch.flip();
+				int bytes = batch.remaining();
+				while (batch.hasRemaining()) {
+					this.log.write(batch);
+				}
+				this.log.force(false);
+				batch.clear();
+				spare = batch;
+				synchronized (this.lock) {
+					this.logSize += bytes;
+					this.durable = batchEnd;
+					this.lock.notifyAll();
+					if (this.logSize > this.compactBytes && !this.closed) {
+						this.compact();
+					}
+				}
+			} catch (IOException e) {
+				synchronized (this.lock) {
+					this.failure = e;
+					this.lock.notifyAll();
+				}
+				return;
+			}
+		}
+	}
+
+	/**
+	 * private void compact()
+	 *
+	 * writes the tree as snapshot g + 1, then switches to the empty log g + 1 and
+	 * deletes generation g. the pending records are already in the tree, so they
+	 * are in the snapshot and count as written. called by the flusher with the
+	 * lock held.
+	 */
+	private void compact() throws IOException {
+		long next = this.generation + 1;
+		Path temp = this.directory.resolve(SNAPSHOT + next + ".tmp");
+		try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			this.tree.writeSnapshot(channel);
+			channel.force(true);
+		}
+		Files.move(temp, this.snapshotFile(next), StandardCopyOption.ATOMIC_MOVE); // from now on open() uses g + 1
+		FileChannel nextLog = FileChannel.open(this.logFile(next), StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		forceDirectory(this.directory); // the rename and the new log's entry, before anything is written to it
+		this.log.close();
+		this.log = nextLog;
+		this.generation = next;
+		this.logSize = 0;
+		this.pending.clear();
+		this.pendingCount = 0;
+		this.durable = this.appended;
+		this.lock.notifyAll();
+		this.deleteOtherGenerations();
+	}
+
+	/**
+	 * private long replay()
+	 *
+	 * applies the records of the log to the tree, returns the length of the
+	 * valid part of the log. stops at the end of the file or at the first record
+	 * that is cut short or fails its CRC.
+	 */
+	private long replay() throws IOException {
+		long size = this.log.size();
+		DataInputStream in = new DataInputStream(
+				new BufferedInputStream(Channels.newInputStream(this.log.position(0)), 1 << 16));
+		long valid = 0;
+		while (valid + 8 <= size) {
+			int length = in.readInt();
+			int checksum = in.readInt();
+			if (length < 1 || length > size - valid - 8) {
+				break;
+			}
+			byte[] body = new byte[length];
+			try {
+				in.readFully(body);
+			} catch (EOFException e) {
+				break;
+			}
+			this.crc.reset();
+			this.crc.update(body, 0, length);
+			if ((int) this.crc.getValue() != checksum) {
+				break;
+			}
+			this.apply(ByteBuffer.wrap(body));
+			valid += 8 + length;
+		}
+		return valid;
+	}
+
+	private void apply(ByteBuffer record) throws IOException {
+		byte type = record.get();
+		switch (type) {
+		case INSERT:
+			this.tree.insert(record.getInt(), getString(record));
+			break;
+		case DELETE:
+			this.tree.delete(record.getInt());
+			break;
+		case SPLIT:
+			this.tree.split(record.getInt());
+			this.tree = new AVLTree();
+			break;
+		case JOIN:
+			int k = record.getInt();
+			String i = getString(record);
+			int[] keys = new int[record.getInt()];
+			String[] infos = new String[keys.length];
+			for (int j = 0; j < keys.length; j++) {
+				keys[j] = record.getInt();
+			}
+			for (int j = 0; j < keys.length; j++) {
+				infos[j] = getString(record);
+			}
+			this.tree.join(this.tree.new AVLNode(k, i), AVLTree.fromSorted(keys, infos));
+			break;
+		default:
+			throw new IOException("unknown log record type " + type);
+		}
+	}
+
+	private void deleteOtherGenerations() throws IOException {
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(this.directory)) {
+			for (Path file : files) {
+				String name = file.getFileName().toString();
+				boolean ours = name.startsWith(SNAPSHOT) || name.startsWith(LOG);
+				if (ours && !file.equals(this.snapshotFile(this.generation)) && !file.equals(this.logFile(this.generation))) {
+					Files.delete(file);
+				}
+			}
+		}
+	}
+
+	private Path snapshotFile(long g) {
+		return this.directory.resolve(SNAPSHOT + g);
+	}
+
+	private Path logFile(long g) {
+		return this.directory.resolve(LOG + g);
+	}
+
+	// the generation in a file name like snapshot.12, or -1 for other names (snapshot.12.tmp)
+	private static long generationOf(Path file, String prefix) {
+		String suffix = file.getFileName().toString().substring(prefix.length());
+		try {
+			return Long.parseLong(suffix);
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	// makes renames and new files in directory durable, where the platform allows opening a directory
+	private static void forceDirectory(Path directory) {
+		try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+			channel.force(true);
+		} catch (IOException e) {
+			// not supported here (Windows), the rename is still atomic
+		}
+	}
+
+	private void waitUninterruptibly(long nanos) {
+		try {
+			if (nanos == 0) {
+				this.lock.wait();
+			} else {
+				TimeUnit.NANOSECONDS.timedWait(this.lock, nanos);
+			}
+		} catch (InterruptedException e) {
+			// the flusher stops only through close()
+		}
+	}
+
+	private void ensureOpen() throws IOException {
+		if (this.closed) {
+			throw new IllegalStateException("DurableAVLTree is closed");
+		}
+		if (this.failure != null) {
+			throw new IOException("write-ahead log failed", this.failure);
+		}
+	}
+
+	private static byte[] encode(String s) {
+		return s == null ? null : s.getBytes(StandardCharsets.UTF_8);
+	}
+
+	// the bytes putString writes
+	private static int length(byte[] s) {
+		return s == null ? 4 : 4 + s.length;
+	}
+
+	private static void putString(ByteBuffer buffer, byte[] s) {
+		if (s == null) {
+			buffer.putInt(-1);
+		} else {
+			buffer.putInt(s.length).put(s);
+		}
+	}
+
+	private static String getString(ByteBuffer buffer) {
+		int length = buffer.getInt();
+		if (length == -1) {
+			return null;
+		}
+		String s = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+		buffer.position(buffer.position() + length);
+		return s;
+	}
+}
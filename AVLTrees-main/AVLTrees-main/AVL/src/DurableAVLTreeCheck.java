@@ -0,0 +1,172 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ *
+ * DurableAVLTreeCheck
+ *
+ * Recovery checks for DurableAVLTree, each in a fresh temporary directory and
+ * against a TreeMap holding what the tree should contain:
+ *
+ * - replay: random inserts, deletes, a split and a join, reopened from the log
+ * - torn tail: the last record cut short, and a flipped byte in the last
+ *   record; both are dropped on open, the log is truncated to the valid part
+ *   and new writes after it survive the next open
+ * - compaction: a small compactBytes forces several generations; only the
+ *   newest snapshot and log are left, and reopening gives the same tree
+ *
+ * Throws AssertionError at the first difference, prints one line per check
+ * otherwise.
+ *
+ * usage: java DurableAVLTreeCheck [seed]
+ *
+ */
+public class DurableAVLTreeCheck {
+
+	public static void main(String[] args) throws IOException {
+		long seed = args.length > 0 ? Long.parseLong(args[0]) : 1;
+		replay(new Random(seed));
+		tornTail(new Random(seed), false);
+		tornTail(new Random(seed), true);
+		compaction(new Random(seed));
+	}
+
+	static void replay(Random random) throws IOException {
+		Path directory = Files.createTempDirectory("durable-avl");
+		TreeMap<Integer, String> expected = new TreeMap<>();
+		try (DurableAVLTree tree = DurableAVLTree.open(directory, 16, 200, 64L << 20)) {
+			randomWrites(tree, expected, random, 2000, 100000);
+
+			// split at the middle key, then join the upper part back with a new key
+			int x = expected.keySet().toArray(new Integer[0])[expected.size() / 2];
+			AVLTree[] parts = tree.split(x);
+			expected.remove(x);
+			check(tree.empty(), "split leaves the tree empty");
+			TreeMap<Integer, String> lower = new TreeMap<>(expected.headMap(x));
+			TreeMap<Integer, String> upper = new TreeMap<>(expected.tailMap(x));
+			tree.join(x, "joined", parts[1]);
+			expected = upper;
+			expected.put(x, "joined");
+			checkContents(tree, expected, "after split and join");
+			check(parts[0].size() == lower.size(), "split's lower part has " + parts[0].size() + " items");
+		}
+		try (DurableAVLTree tree = DurableAVLTree.open(directory)) {
+			checkContents(tree, expected, "replay");
+		}
+		delete(directory);
+		System.out.println("replay: " + expected.size() + " items ok");
+	}
+
+	static void tornTail(Random random, boolean flipByte) throws IOException {
+		Path directory = Files.createTempDirectory("durable-avl");
+		TreeMap<Integer, String> expected = new TreeMap<>();
+		try (DurableAVLTree tree = DurableAVLTree.open(directory)) {
+			randomWrites(tree, expected, random, 500, 100000);
+			tree.insert(100001, "last"); // a new key, so this write's record ends the log
+		}
+		Path log = directory.resolve("log.0");
+		long size = Files.size(log);
+		try (FileChannel channel = FileChannel.open(log, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			if (flipByte) {
+				ByteBuffer b = ByteBuffer.allocate(1);
+				channel.read(b, size - 1);
+				b.put(0, (byte) (b.get(0) ^ 0xff)).rewind();
+				channel.write(b, size - 1);
+			} else {
+				channel.truncate(size - 3);
+			}
+		}
+		try (DurableAVLTree tree = DurableAVLTree.open(directory)) {
+			checkContents(tree, expected, "torn record dropped");
+			check(Files.size(log) < size - 3, "log truncated to its valid part, " + Files.size(log) + " bytes");
+			tree.insert(100002, "after");
+			expected.put(100002, "after");
+		}
+		try (DurableAVLTree tree = DurableAVLTree.open(directory)) {
+			checkContents(tree, expected, "writes after a torn tail");
+		}
+		delete(directory);
+		System.out.println("torn tail (" + (flipByte ? "bad CRC" : "cut short") + "): ok");
+	}
+
+	static void compaction(Random random) throws IOException {
+		Path directory = Files.createTempDirectory("durable-avl");
+		TreeMap<Integer, String> expected = new TreeMap<>();
+		long generation;
+		try (DurableAVLTree tree = DurableAVLTree.open(directory, 8, 100, 16 << 10)) {
+			randomWrites(tree, expected, random, 20000, 5000);
+			generation = tree.getGeneration();
+			check(generation > 0, "compacted at least once");
+		}
+		List<String> files = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+			for (Path file : stream) {
+				files.add(file.getFileName().toString());
+			}
+		}
+		check(files.size() == 2 && files.contains("snapshot." + generation) && files.contains("log." + generation),
+				"only the newest generation is left: " + files);
+		try (DurableAVLTree tree = DurableAVLTree.open(directory)) {
+			check(tree.getGeneration() == generation, "reopened at generation " + tree.getGeneration());
+			checkContents(tree, expected, "snapshot and log after compaction");
+		}
+		delete(directory);
+		System.out.println("compaction: " + generation + " generations, " + expected.size() + " items ok");
+	}
+
+	// count inserts and deletes of random keys below bound, mirrored in expected
+	private static void randomWrites(DurableAVLTree tree, Map<Integer, String> expected, Random random, int count,
+			int bound) throws IOException {
+		for (int i = 0; i < count; i++) {
+			int k = random.nextInt(bound);
+			if (random.nextInt(4) == 0) {
+				int result = tree.delete(k);
+				check((result != -1) == (expected.remove(k) != null), "delete " + k);
+			} else {
+				String info = "v" + i;
+				int result = tree.insert(k, info);
+				check((result != -1) == !expected.containsKey(k), "insert " + k);
+				if (result != -1) {
+					expected.put(k, info);
+				}
+			}
+		}
+	}
+
+	private static void checkContents(DurableAVLTree tree, TreeMap<Integer, String> expected, String what) {
+		int[] keys = tree.keysToArray();
+		String[] infos = tree.infoToArray();
+		check(keys.length == expected.size(), what + ": " + keys.length + " keys, expected " + expected.size());
+		int i = 0;
+		for (Map.Entry<Integer, String> entry : expected.entrySet()) {
+			check(keys[i] == entry.getKey() && entry.getValue().equals(infos[i]),
+					what + ": item " + i + " is " + keys[i] + "=" + infos[i] + ", expected " + entry);
+			i++;
+		}
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new AssertionError(message);
+		}
+	}
+
+	private static void delete(Path directory) throws IOException {
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+			for (Path file : stream) {
+				Files.delete(file);
+			}
+		}
+		Files.delete(directory);
+	}
+}
@@ -0,0 +1,742 @@
+import java.util.Arrays;
+
+/**
+ *
+ * FineGrainedAVLTree
+ *
+ * A concurrent relaxed-balance AVL tree after Bronson, Casper, Chafi and
+ * Olukotun, "A Practical Concurrent Binary Search Tree" (PPoPP 2010). Any
+ * number of threads may search, insert and delete at the same time:
+ *
+ * - search takes no locks. each node has a version that a rotation marks
+ *   ("shrinking") while it moves the node down and bumps when done. A reader
+ *   notes the version of a node before it goes to a child and checks it again
+ *   after, so it retries from that node instead of following a moved subtree.
+ * - insert locks only the node it links the new leaf under, delete only the
+ *   node it removes and its parent. a node with two children is not removed
+ *   but left as a routing node (info marked absent), as in the paper.
+ * - rebalancing runs after the write, bottom up, locking a parent and child at
+ *   a time and only the nodes a rotation touches. heights are allowed to be
+ *   briefly wrong (relaxed balance) and are repaired by whoever damaged them.
+ *
+ * Heights here count a leaf as 1 and a null child as 0, so a rank difference
+ * of AVLTree is the same difference of heights: rebalanceToRight/Left are the
+ * (2,0) cases of AVLTree.rebalance and rebalanceDelete - a single rotation when
+ * the taller child leans the same way or is balanced, a double rotation when
+ * it leans the other way - and fixHeight is their promote / demote.
+ *
+ */
+public class FineGrainedAVLTree {
+
+	private static final long UNLINKED = 1L; // version of a node that was removed from the tree
+	private static final long SHRINKING = 2L; // set while a rotation moves the node down
+	private static final long VERSION_STEP = 4L;
+
+	private static final int UNLINK_REQUIRED = -1;
+	private static final int REBALANCE_REQUIRED = -2;
+	private static final int NOTHING_REQUIRED = -3;
+
+	private static final int SPIN_COUNT = 100; // then wait on the lock of the rotating thread
+
+	private static final Object RETRY = new Object(); // an optimistic attempt saw a concurrent change
+	private static final Object NULL_INFO = new Object(); // a null info, to tell it apart from "absent"
+
+	// the root of the tree is rootHolder.right; the holder is never rotated or removed
+	private final Node rootHolder = new Node(0, null, 0, null);
+
+	/**
+	 * public boolean empty()
+	 *
+	 * returns true if and only if the tree is empty. O(1): a routing node is
+	 * unlinked once it has fewer than two children, so a tree with a root has
+	 * items (up to deletes that are still rebalancing)
+	 */
+	public boolean empty() {
+		return this.rootHolder.right == null;
+	}
+
+	/**
+	 * public String search(int k)
+	 *
+	 * returns the info of an item with key k if it exists in the tree otherwise,
+	 * returns null. takes no locks.
+	 */
+	public String search(int k) {
+		return decode(this.find(k));
+	}
+
+	/**
+	 * public boolean contains(int k)
+	 *
+	 * returns true if an item with key k is in the tree, even if its info is null
+	 */
+	public boolean contains(int k) {
+		return this.find(k) != null;
+	}
+
+	/**
+	 * public int insert(int k, String i)
+	 *
+	 * inserts an item with key k and info i to the tree if there is no item with
+	 * key k. returns 0, or -1 if an item with key k already exists in the tree.
+	 * (rebalancing may be finished by other threads, so there is no count of
+	 * rebalancing operations as in AVLTree.insert)
+	 */
+	public int insert(int k, String i) {
+		return this.update(k, i == null ? NULL_INFO : i) == null ? 0 : -1;
+	}
+
+	/**
+	 * public int delete(int k)
+	 *
+	 * deletes the item with key k from the tree if it exists. returns 0, or -1 if
+	 * an item with key k was not found in the tree.
+	 */
+	public int delete(int k) {
+		return this.update(k, null) == null ? -1 : 0;
+	}
+
+	/**
+	 * public int size()
+	 *
+	 * Returns the number of items in the tree. O(n); counts while writers may
+	 * be running, so with concurrent writes the result is only an estimate.
+	 */
+	public int size() {
+		return this.keysToArray().length;
+	}
+
+	/**
+	 * public int[] keysToArray()
+	 *
+	 * Returns a sorted array of the keys in the tree. the walk does not stop
+	 * writers, so it may miss keys inserted or deleted meanwhile, but each key it
+	 * returns was in the tree at some point during the call.
+	 */
+	public int[] keysToArray() {
+		KeyBuffer keys = new KeyBuffer();
+		collect(this.rootHolder.right, keys);
+		return Arrays.copyOf(keys.keys, keys.size);
+	}
+
+	/**
+	 * public int getHeight()
+	 *
+	 * Returns the height of the tree, as AVLTree counts it: -1 if empty, 0 for a
+	 * single node. includes routing nodes.
+	 */
+	public int getHeight() {
+		return height(this.rootHolder.right) - 1;
+	}
+
+	// search
+
+	// the encoded info of key k, or null if absent
+	private Object find(int k) {
+		while (true) {
+			Node right = this.rootHolder.right;
+			if (right == null) {
+				return null;
+			}
+			if (k == right.key) {
+				return right.info;
+			}
+			long version = right.version;
+			if ((version & (SHRINKING | UNLINKED)) != 0) {
+				right.waitUntilShrinkCompleted(version);
+			} else if (right == this.rootHolder.right) {
+				Object info = attemptFind(k, right, k < right.key, version);
+				if (info != RETRY) {
+					return info;
+				}
+			}
+		}
+	}
+
+	// searches k under node, in the direction of its left child if goLeft
+	private static Object attemptFind(int k, Node node, boolean goLeft, long nodeVersion) {
+		while (true) {
+			Node child = node.child(goLeft);
+			if (child == null) {
+				return node.version != nodeVersion ? RETRY : null;
+			}
+			if (k == child.key) {
+				return child.info; // a node with key k never moves to another key, so no check is needed
+			}
+			long childVersion = child.version;
+			if ((childVersion & (SHRINKING | UNLINKED)) != 0) {
+				child.waitUntilShrinkCompleted(childVersion);
+				if (node.version != nodeVersion) {
+					return RETRY;
+				}
+			} else if (child != node.child(goLeft)) {
+				if (node.version != nodeVersion) {
+					return RETRY;
+				}
+			} else {
+				if (node.version != nodeVersion) {
+					return RETRY;
+				}
+				Object info = attemptFind(k, child, k < child.key, childVersion);
+				if (info != RETRY) {
+					return info;
+				}
+			}
+		}
+	}
+
+	// insert / delete
+
+	// inserts (k, info) if k is absent, or deletes k if info is null. returns the encoded info that was there
+	private Object update(int k, Object info) {
+		while (true) {
+			Node right = this.rootHolder.right;
+			if (right == null) {
+				if (info == null) {
+					return null;
+				}
+				synchronized (this.rootHolder) {
+					if (this.rootHolder.right == null) {
+						this.rootHolder.right = new Node(k, info, 1, this.rootHolder);
+						this.rootHolder.height = 2;
+						return null;
+					}
+				}
+			} else {
+				long version = right.version;
+				if ((version & (SHRINKING | UNLINKED)) != 0) {
+					right.waitUntilShrinkCompleted(version);
+				} else if (right == this.rootHolder.right) {
+					Object previous = this.attemptUpdate(k, info, this.rootHolder, right, version);
+					if (previous != RETRY) {
+						return previous;
+					}
+				}
+			}
+		}
+	}
+
+	private Object attemptUpdate(int k, Object info, Node parent, Node node, long nodeVersion) {
+		if (k == node.key) {
+			return this.attemptNodeUpdate(info, parent, node);
+		}
+		boolean goLeft = k < node.key;
+		while (true) {
+			Node child = node.child(goLeft);
+			if (node.version != nodeVersion) {
+				return RETRY;
+			}
+			if (child == null) {
+				if (info == null) {
+					return null; // delete of a missing key
+				}
+				boolean inserted;
+				Node damaged = null;
+				synchronized (node) {
+					// node is locked, so it cannot rotate away from here any more
+					if (node.version != nodeVersion) {
+						return RETRY;
+					}
+					inserted = node.child(goLeft) == null; // else another insert won the race, look again
+					if (inserted) {
+						node.setChild(goLeft, new Node(k, info, 1, node));
+						damaged = fixHeight(node);
+					}
+				}
+				if (inserted) {
+					this.fixHeightAndRebalance(damaged);
+					return null;
+				}
+			} else {
+				long childVersion = child.version;
+				if ((childVersion & (SHRINKING | UNLINKED)) != 0) {
+					child.waitUntilShrinkCompleted(childVersion);
+				} else if (child == node.child(goLeft)) {
+					if (node.version != nodeVersion) {
+						return RETRY;
+					}
+					Object previous = this.attemptUpdate(k, info, node, child, childVersion);
+					if (previous != RETRY) {
+						return previous;
+					}
+				}
+			}
+		}
+	}
+
+	// k == node.key: sets node's info if it is absent (insert), or removes it (delete)
+	private Object attemptNodeUpdate(Object info, Node parent, Node node) {
+		if (info == null && node.info == null) {
+			return null; // already deleted
+		}
+		if (info == null && (node.left == null || node.right == null)) {
+			// node can be unlinked, which needs the parent locked too
+			Object previous;
+			Node damaged;
+			synchronized (parent) {
+				if ((parent.version & UNLINKED) != 0 || node.parent != parent) {
+					return RETRY;
+				}
+				synchronized (node) {
+					previous = node.info;
+					if (previous == null) {
+						return null;
+					}
+					if (!attemptUnlink(parent, node)) {
+						return RETRY;
+					}
+				}
+				damaged = fixHeight(parent);
+			}
+			this.fixHeightAndRebalance(damaged);
+			return previous;
+		}
+		synchronized (node) {
+			if ((node.version & UNLINKED) != 0) {
+				return RETRY;
+			}
+			Object previous = node.info;
+			if (info == null) {
+				if (node.left == null || node.right == null) {
+					return RETRY; // it can be unlinked now
+				}
+				node.info = null; // becomes a routing node
+			} else if (previous == null) {
+				node.info = info; // a routing node becomes an item again
+			}
+			return previous;
+		}
+	}
+
+	// parent and node locked: splices node out if it has at most one child
+	private static boolean attemptUnlink(Node parent, Node node) {
+		Node parentLeft = parent.left;
+		Node parentRight = parent.right;
+		if (parentLeft != node && parentRight != node) {
+			return false; // node was rotated away from parent
+		}
+		Node left = node.left;
+		Node right = node.right;
+		if (left != null && right != null) {
+			return false;
+		}
+		Node splice = left != null ? left : right;
+		if (parentLeft == node) {
+			parent.left = splice;
+		} else {
+			parent.right = splice;
+		}
+		if (splice != null) {
+			splice.parent = parent;
+		}
+		node.version = UNLINKED;
+		node.info = null;
+		return true;
+	}
+
+	// rebalancing
+
+	// what node needs, judged from unlocked reads: its new height, or one of the *_REQUIRED values
+	private static int nodeCondition(Node node) {
+		Node left = node.left;
+		Node right = node.right;
+		if ((left == null || right == null) && node.info == null) {
+			return UNLINK_REQUIRED;
+		}
+		int hN = node.height;
+		int hL = height(left);
+		int hR = height(right);
+		int hNRepl = 1 + Math.max(hL, hR);
+		int balance = hL - hR;
+		if (balance < -1 || balance > 1) {
+			return REBALANCE_REQUIRED;
+		}
+		return hN != hNRepl ? hNRepl : NOTHING_REQUIRED;
+	}
+
+	// repairs from node up to the root, for as long as there is damage this thread caused
+	private void fixHeightAndRebalance(Node node) {
+		while (node != null && node.parent != null) {
+			int condition = nodeCondition(node);
+			if (condition == NOTHING_REQUIRED || (node.version & UNLINKED) != 0) {
+				return;
+			}
+			if (condition != UNLINK_REQUIRED && condition != REBALANCE_REQUIRED) {
+				synchronized (node) {
+					node = fixHeight(node);
+				}
+			} else {
+				Node parent = node.parent;
+				synchronized (parent) {
+					if ((parent.version & UNLINKED) == 0 && node.parent == parent) {
+						synchronized (node) {
+							node = rebalance(parent, node);
+						}
+					} // else node moved, look at it again
+				}
+			}
+		}
+	}
+
+	// node locked: fixes its height (promote / demote), returns the next damaged node or null
+	private static Node fixHeight(Node node) {
+		int condition = nodeCondition(node);
+		switch (condition) {
+		case REBALANCE_REQUIRED:
+		case UNLINK_REQUIRED:
+			return node;
+		case NOTHING_REQUIRED:
+			return null;
+		default:
+			node.height = condition;
+			return node.parent;
+		}
+	}
+
+	// parent and node locked: unlinks or rotates node, returns the next damaged node or null
+	private static Node rebalance(Node parent, Node node) {
+		Node left = node.left;
+		Node right = node.right;
+		if ((left == null || right == null) && node.info == null) {
+			return attemptUnlink(parent, node) ? fixHeight(parent) : node;
+		}
+		int hN = node.height;
+		int hL = height(left);
+		int hR = height(right);
+		int hNRepl = 1 + Math.max(hL, hR);
+		int balance = hL - hR;
+		if (balance > 1) {
+			return rebalanceToRight(parent, node, left, hR);
+		} else if (balance < -1) {
+			return rebalanceToLeft(parent, node, right, hL);
+		} else if (hNRepl != hN) {
+			node.height = hNRepl;
+			return fixHeight(parent);
+		}
+		return null;
+	}
+
+	// the left subtree of node is too high: rotate right, first rotating left at nL if it leans right
+	private static Node rebalanceToRight(Node parent, Node node, Node nL, int hR) {
+		synchronized (nL) {
+			int hL = nL.height;
+			if (hL - hR <= 1) {
+				return node; // changed meanwhile, look again
+			}
+			Node nLR = nL.right;
+			int hLL = height(nL.left);
+			int hLR = height(nLR);
+			if (hLL >= hLR) {
+				return rotateRight(parent, node, nL, hR, hLL, nLR, hLR);
+			}
+			synchronized (nLR) {
+				hLR = nLR.height;
+				if (hLL >= hLR) {
+					return rotateRight(parent, node, nL, hR, hLL, nLR, hLR);
+				}
+				int hLRL = height(nLR.left);
+				int b = hLL - hLRL;
+				if (b >= -1 && b <= 1 && !((hLL == 0 || hLRL == 0) && nL.info == null)) {
+					return rotateRightOverLeft(parent, node, nL, hR, hLL, nLR, hLRL);
+				}
+			}
+			return rebalanceToLeft(node, nL, nLR, hLL); // fix nL on its own, node is rebalanced later
+		}
+	}
+
+	private static Node rebalanceToLeft(Node parent, Node node, Node nR, int hL) {
+		synchronized (nR) {
+			int hR = nR.height;
+			if (hL - hR >= -1) {
+				return node;
+			}
+			Node nRL = nR.left;
+			int hRL = height(nRL);
+			int hRR = height(nR.right);
+			if (hRR >= hRL) {
+				return rotateLeft(parent, node, hL, nR, nRL, hRL, hRR);
+			}
+			synchronized (nRL) {
+				hRL = nRL.height;
+				if (hRR >= hRL) {
+					return rotateLeft(parent, node, hL, nR, nRL, hRL, hRR);
+				}
+				int hRLR = height(nRL.right);
+				int b = hRR - hRLR;
+				if (b >= -1 && b <= 1 && !((hRR == 0 || hRLR == 0) && nR.info == null)) {
+					return rotateLeftOverRight(parent, node, hL, nR, nRL, hRR, hRLR);
+				}
+			}
+			return rebalanceToRight(node, nR, nRL, hRR);
+		}
+	}
+
+	private static Node rotateRight(Node parent, Node node, Node nL, int hR, int hLL, Node nLR, int hLR) {
+		long version = node.version;
+		Node parentLeft = parent.left;
+		node.version = version | SHRINKING;
+
+		node.left = nLR;
+		if (nLR != null) {
+			nLR.parent = node;
+		}
+		nL.right = node;
+		node.parent = nL;
+		if (parentLeft == node) {
+			parent.left = nL;
+		} else {
+			parent.right = nL;
+		}
+		nL.parent = parent;
+
+		int hNRepl = 1 + Math.max(hLR, hR);
+		node.height = hNRepl;
+		nL.height = 1 + Math.max(hLL, hNRepl);
+		node.version = endShrink(version);
+
+		// fix what can be fixed with the locks held, deepest first
+		int balN = hLR - hR;
+		if (balN < -1 || balN > 1) {
+			return node;
+		}
+		if ((nLR == null || hR == 0) && node.info == null) {
+			return node;
+		}
+		int balL = hLL - hNRepl;
+		if (balL < -1 || balL > 1) {
+			return nL;
+		}
+		if (hLL == 0 && nL.info == null) {
+			return nL;
+		}
+		return fixHeight(parent);
+	}
+
+	private static Node rotateLeft(Node parent, Node node, int hL, Node nR, Node nRL, int hRL, int hRR) {
+		long version = node.version;
+		Node parentLeft = parent.left;
+		node.version = version | SHRINKING;
+
+		node.right = nRL;
+		if (nRL != null) {
+			nRL.parent = node;
+		}
+		nR.left = node;
+		node.parent = nR;
+		if (parentLeft == node) {
+			parent.left = nR;
+		} else {
+			parent.right = nR;
+		}
+		nR.parent = parent;
+
+		int hNRepl = 1 + Math.max(hL, hRL);
+		node.height = hNRepl;
+		nR.height = 1 + Math.max(hNRepl, hRR);
+		node.version = endShrink(version);
+
+		int balN = hRL - hL;
+		if (balN < -1 || balN > 1) {
+			return node;
+		}
+		if ((nRL == null || hL == 0) && node.info == null) {
+			return node;
+		}
+		int balR = hRR - hNRepl;
+		if (balR < -1 || balR > 1) {
+			return nR;
+		}
+		if (hRR == 0 && nR.info == null) {
+			return nR;
+		}
+		return fixHeight(parent);
+	}
+
+	private static Node rotateRightOverLeft(Node parent, Node node, Node nL, int hR, int hLL, Node nLR, int hLRL) {
+		long version = node.version;
+		long leftVersion = nL.version;
+		Node parentLeft = parent.left;
+		Node nLRL = nLR.left;
+		Node nLRR = nLR.right;
+		int hLRR = height(nLRR);
+		node.version = version | SHRINKING;
+		nL.version = leftVersion | SHRINKING;
+
+		node.left = nLRR;
+		if (nLRR != null) {
+			nLRR.parent = node;
+		}
+		nL.right = nLRL;
+		if (nLRL != null) {
+			nLRL.parent = nL;
+		}
+		nLR.left = nL;
+		nL.parent = nLR;
+		nLR.right = node;
+		node.parent = nLR;
+		if (parentLeft == node) {
+			parent.left = nLR;
+		} else {
+			parent.right = nLR;
+		}
+		nLR.parent = parent;
+
+		int hNRepl = 1 + Math.max(hLRR, hR);
+		node.height = hNRepl;
+		int hLRepl = 1 + Math.max(hLL, hLRL);
+		nL.height = hLRepl;
+		nLR.height = 1 + Math.max(hLRepl, hNRepl);
+		node.version = endShrink(version);
+		nL.version = endShrink(leftVersion);
+
+		int balN = hLRR - hR;
+		if (balN < -1 || balN > 1) {
+			return node;
+		}
+		if ((nLRR == null || hR == 0) && node.info == null) {
+			return node;
+		}
+		int balLR = hLRepl - hNRepl;
+		if (balLR < -1 || balLR > 1) {
+			return nLR;
+		}
+		return fixHeight(parent);
+	}
+
+	private static Node rotateLeftOverRight(Node parent, Node node, int hL, Node nR, Node nRL, int hRR, int hRLR) {
+		long version = node.version;
+		long rightVersion = nR.version;
+		Node parentLeft = parent.left;
+		Node nRLL = nRL.left;
+		Node nRLR = nRL.right;
+		int hRLL = height(nRLL);
+		node.version = version | SHRINKING;
+		nR.version = rightVersion | SHRINKING;
+
+		node.right = nRLL;
+		if (nRLL != null) {
+			nRLL.parent = node;
+		}
+		nR.left = nRLR;
+		if (nRLR != null) {
+			nRLR.parent = nR;
+		}
+		nRL.right = nR;
+		nR.parent = nRL;
+		nRL.left = node;
+		node.parent = nRL;
+		if (parentLeft == node) {
+			parent.left = nRL;
+		} else {
+			parent.right = nRL;
+		}
+		nRL.parent = parent;
+
+		int hNRepl = 1 + Math.max(hL, hRLL);
+		node.height = hNRepl;
+		int hRRepl = 1 + Math.max(hRLR, hRR);
+		nR.height = hRRepl;
+		nRL.height = 1 + Math.max(hNRepl, hRRepl);
+		node.version = endShrink(version);
+		nR.version = endShrink(rightVersion);
+
+		int balN = hRLL - hL;
+		if (balN < -1 || balN > 1) {
+			return node;
+		}
+		if ((nRLL == null || hL == 0) && node.info == null) {
+			return node;
+		}
+		int balRL = hRRepl - hNRepl;
+		if (balRL < -1 || balRL > 1) {
+			return nRL;
+		}
+		return fixHeight(parent);
+	}
+
+	// helpers
+
+	// the version after a shrink that started at version: not shrinking, and one step higher
+	private static long endShrink(long version) {
+		return (version | (VERSION_STEP - 1)) + 1;
+	}
+
+	private static int height(Node node) {
+		return node == null ? 0 : node.height;
+	}
+
+	private static String decode(Object info) {
+		return info == NULL_INFO ? null : (String) info;
+	}
+
+	// in-order walk of node's subtree, keeping only items and increasing keys
+	private static void collect(Node node, KeyBuffer keys) {
+		while (node != null) {
+			collect(node.left, keys);
+			if (node.info != null && (keys.size == 0 || node.key > keys.keys[keys.size - 1])) {
+				keys.add(node.key);
+			}
+			node = node.right;
+		}
+	}
+
+	private static final class KeyBuffer {
+		int[] keys = new int[16];
+		int size;
+
+		void add(int key) {
+			if (this.size == this.keys.length) {
+				this.keys = Arrays.copyOf(this.keys, 2 * this.size);
+			}
+			this.keys[this.size++] = key;
+		}
+	}
+
+	/**
+	 * a tree node; all fields a reader follows are volatile. info is the item's
+	 * info (NULL_INFO for null), or null for a routing node.
+	 */
+	private static final class Node {
+		final int key;
+		volatile Object info;
+		volatile int height;
+		volatile long version;
+		volatile Node parent;
+		volatile Node left;
+		volatile Node right;
+
+		Node(int key, Object info, int height, Node parent) {
+			this.key = key;
+			this.info = info;
+			this.height = height;
+			this.parent = parent;
+		}
+
+		Node child(boolean left) {
+			return left ? this.left : this.right;
+		}
+
+		void setChild(boolean left, Node child) {
+			if (left) {
+				this.left = child;
+			} else {
+				this.right = child;
+			}
+		}
+
+		// waits for a rotation that moves this node down to finish
+		void waitUntilShrinkCompleted(long version) {
+			if ((version & SHRINKING) == 0) {
+				return;
+			}
+			for (int tries = 0; tries < SPIN_COUNT; tries++) {
+				if (this.version != version) {
+					return;
+				}
+			}
+			synchronized (this) {
+				// the rotating thread holds this lock until the shrink is over
+			}
+		}
+	}
+}
@@ -0,0 +1,178 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ *
+ * FineGrainedAVLTreeStress
+ *
+ * A multi-threaded stress test of FineGrainedAVLTree. The tree starts with the
+ * stable keys (the even numbers below 2 * stable), which nobody deletes. Each
+ * thread owns the odd keys k with (k / 2) % threads == its index, and inserts
+ * and deletes them at random, so the rotations of all threads run through the
+ * same stable nodes. While it runs, each thread checks that
+ *
+ * - a stable key is always found, with its info (a search that followed a
+ *   rotated subtree the wrong way would miss it)
+ * - insert / delete / search of its own keys agree with what it has done,
+ *   since no other thread touches them
+ *
+ * At the end keysToArray() must be exactly the stable keys and the keys the
+ * threads left inserted, the height within the AVL bound, and empty() must
+ * agree with size(). Throws AssertionError at the first difference.
+ *
+ * usage: java FineGrainedAVLTreeStress [-threads 4] [-ops 1000000]
+ *                                      [-stable 10000] [-seed 1]
+ *
+ */
+public class FineGrainedAVLTreeStress {
+
+	public static void main(String[] args) throws InterruptedException {
+		int threads = 4;
+		int ops = 1000000;
+		int stable = 10000;
+		long seed = 1;
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			if (args[i].equals("-threads")) {
+				threads = Integer.parseInt(args[i + 1]);
+			} else if (args[i].equals("-ops")) {
+				ops = (int) Double.parseDouble(args[i + 1]); // allows 1e6
+			} else if (args[i].equals("-stable")) {
+				stable = Integer.parseInt(args[i + 1]);
+			} else if (args[i].equals("-seed")) {
+				seed = Long.parseLong(args[i + 1]);
+			} else {
+				throw new IllegalArgumentException("unknown flag " + args[i]);
+			}
+		}
+
+		FineGrainedAVLTree tree = new FineGrainedAVLTree();
+		check(tree.empty(), "a new tree is empty");
+		for (int k = 0; k < 2 * stable; k += 2) {
+			tree.insert(k, info(k));
+		}
+		int ownKeys = Math.max(16, stable / threads); // per thread, so inserts and deletes both happen
+
+		Worker[] workers = new Worker[threads];
+		CountDownLatch start = new CountDownLatch(1);
+		for (int t = 0; t < threads; t++) {
+			workers[t] = new Worker(tree, t, threads, ownKeys, stable, ops, new Random(seed + t), start);
+			workers[t].start();
+		}
+		long begin = System.nanoTime();
+		start.countDown();
+		for (Worker worker : workers) {
+			worker.join();
+		}
+		long millis = (System.nanoTime() - begin) / 1000000;
+		for (Worker worker : workers) {
+			if (worker.failure != null) {
+				throw new AssertionError("thread " + worker.index + " failed", worker.failure);
+			}
+		}
+
+		List<Integer> expected = new ArrayList<>();
+		for (int k = 0; k < 2 * stable; k += 2) {
+			expected.add(k);
+		}
+		for (Worker worker : workers) {
+			for (int j = worker.present.nextSetBit(0); j >= 0; j = worker.present.nextSetBit(j + 1)) {
+				expected.add(worker.key(j));
+			}
+		}
+		int[] expectedKeys = new int[expected.size()];
+		for (int i = 0; i < expectedKeys.length; i++) {
+			expectedKeys[i] = expected.get(i);
+		}
+		Arrays.sort(expectedKeys);
+		int[] keys = tree.keysToArray();
+		check(Arrays.equals(keys, expectedKeys), "final keys: " + keys.length + " keys, expected " + expectedKeys.length);
+		for (int k : expectedKeys) {
+			check(info(k).equals(tree.search(k)), "info of " + k);
+		}
+		double bound = 1.4405 * Math.log(keys.length + 2) / Math.log(2) - 0.3277; // AVL height bound, in nodes
+		check(tree.getHeight() + 1 <= bound, "height " + tree.getHeight() + " for " + keys.length + " keys");
+		check(tree.empty() == (tree.size() == 0), "empty() agrees with size()");
+		System.out.println(threads + " threads, " + ops + " operations each, " + millis + "ms: " + keys.length
+				+ " keys, height " + tree.getHeight() + " ok");
+	}
+
+	private static final class Worker extends Thread {
+		final FineGrainedAVLTree tree;
+		final int index;
+		final int threads;
+		final int ownKeys;
+		final int stable;
+		final int ops;
+		final Random random;
+		final CountDownLatch start;
+		final BitSet present = new BitSet(); // own key j is in the tree
+		volatile Throwable failure;
+
+		Worker(FineGrainedAVLTree tree, int index, int threads, int ownKeys, int stable, int ops, Random random,
+				CountDownLatch start) {
+			super("stress-" + index);
+			this.tree = tree;
+			this.index = index;
+			this.threads = threads;
+			this.ownKeys = ownKeys;
+			this.stable = stable;
+			this.ops = ops;
+			this.random = random;
+			this.start = start;
+		}
+
+		// the j'th own key: odd, spread between the stable keys
+		int key(int j) {
+			return 2 * (j * this.threads + this.index) + 1;
+		}
+
+		public void run() {
+			try {
+				this.start.await();
+				for (int i = 0; i < this.ops; i++) {
+					int j = this.random.nextInt(this.ownKeys);
+					int k = this.key(j);
+					switch (this.random.nextInt(4)) {
+					case 0: {
+						int result = this.tree.insert(k, info(k));
+						check((result == 0) == !this.present.get(j), "insert " + k + " returned " + result);
+						this.present.set(j);
+						break;
+					}
+					case 1: {
+						int result = this.tree.delete(k);
+						check((result == 0) == this.present.get(j), "delete " + k + " returned " + result);
+						this.present.clear(j);
+						break;
+					}
+					case 2: {
+						String found = this.tree.search(k);
+						check(this.present.get(j) ? info(k).equals(found) : found == null, "search own key " + k);
+						break;
+					}
+					default: {
+						int s = 2 * this.random.nextInt(this.stable);
+						check(info(s).equals(this.tree.search(s)), "stable key " + s + " not found");
+					}
+					}
+				}
+			} catch (Throwable e) {
+				this.failure = e;
+			}
+		}
+	}
+
+	private static String info(int k) {
+		return "i" + k;
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new AssertionError(message);
+		}
+	}
+}
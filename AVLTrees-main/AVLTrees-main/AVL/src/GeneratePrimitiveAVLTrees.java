@@ -0,0 +1,44 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ *
+ * GeneratePrimitiveAVLTrees
+ *
+ * Writes the primitive specializations of AVLTree (IntIntAVLTree,
+ * LongLongAVLTree, LongObjAVLTree) from PrimitiveAVLTree.template, by
+ * replacing its $...$ placeholders. Run it again after changing the template:
+ *
+ * usage: java GeneratePrimitiveAVLTrees [source folder, default .]
+ *
+ */
+public class GeneratePrimitiveAVLTrees {
+
+	private static final String TEMPLATE = "PrimitiveAVLTree.template";
+
+	// Tree, TreeDecl, K, V, VElement (array element and field type), ValueCast, ValueAnnotation
+	private static final String[][] SPECIALIZATIONS = {
+			{ "IntIntAVLTree", "IntIntAVLTree", "int", "int", "int", "", "" },
+			{ "LongLongAVLTree", "LongLongAVLTree", "long", "long", "long", "", "" },
+			{ "LongObjAVLTree", "LongObjAVLTree<V>", "long", "V", "Object", "(V) ",
+					"@SuppressWarnings(\"unchecked\") // values are stored as Object\n\t" }, };
+	private static final String[] PLACEHOLDERS = { "$Tree$", "$TreeDecl$", "$K$", "$V$", "$VElement$", "$ValueCast$",
+			"$ValueAnnotation$" };
+
+	public static void main(String[] args) throws IOException {
+		Path folder = Paths.get(args.length > 0 ? args[0] : ".");
+		String template = new String(Files.readAllBytes(folder.resolve(TEMPLATE)), StandardCharsets.UTF_8);
+		for (String[] specialization : SPECIALIZATIONS) {
+			String source = template;
+			for (int i = 0; i < PLACEHOLDERS.length; i++) {
+				source = source.replace(PLACEHOLDERS[i], specialization[i]);
+			}
+			Path target = folder.resolve(specialization[0] + ".java");
+			Files.write(target, source.getBytes(StandardCharsets.UTF_8));
+			System.out.println("wrote " + target);
+		}
+	}
+}
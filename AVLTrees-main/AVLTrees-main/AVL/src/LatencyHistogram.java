@@ -0,0 +1,151 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ *
+ * LatencyHistogram
+ *
+ * A log-bucketed histogram of latencies in nanoseconds, in the style of
+ * HdrHistogram: values below 64 have a bucket each, and every power of two
+ * above that is cut into 32 buckets, so a value is reported at most ~3% above
+ * what was recorded. The buckets cover all of long's range in a fixed array.
+ *
+ * record() is lock-free and allocates nothing: one atomic increment, and a CAS
+ * only when a new maximum is seen. Any thread may record, snapshot or reset at
+ * the same time. intervalSnapshot() takes the counts and zeroes them bucket by
+ * bucket, so a value recorded meanwhile lands in exactly one interval.
+ *
+ */
+public class LatencyHistogram {
+
+	// 32 buckets per power of two
+	private static final int SUB_BITS = 5;
+	private static final int BUCKETS = ((62 - SUB_BITS) << SUB_BITS) + (2 << SUB_BITS);
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * public void record(long nanos)
+	 *
+	 * adds one value; negative values (a clock step) are recorded as 0
+	 */
+	public void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		this.counts.getAndIncrement(bucket(nanos));
+		long current;
+		while (nanos > (current = this.max.get()) && !this.max.compareAndSet(current, nanos)) {
+			// another thread raised the maximum, try again against it
+		}
+	}
+
+	// the counts since the last reset / interval snapshot
+	public Snapshot snapshot() {
+		long[] copy = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			copy[i] = this.counts.get(i);
+		}
+		return new Snapshot(copy, this.max.get());
+	}
+
+	// the counts since the last reset / interval snapshot, and starts a new interval
+	public Snapshot intervalSnapshot() {
+		long[] copy = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			copy[i] = this.counts.getAndSet(i, 0);
+		}
+		return new Snapshot(copy, this.max.getAndSet(0));
+	}
+
+	// drops every recorded value
+	public void reset() {
+		this.intervalSnapshot();
+	}
+
+	// values below 2^(SUB_BITS+1) are their own bucket, above that the top SUB_BITS+1 bits pick it
+	private static int bucket(long value) {
+		int shift = Math.max(0, 63 - Long.numberOfLeadingZeros(value) - SUB_BITS);
+		return (shift << SUB_BITS) + (int) (value >>> shift);
+	}
+
+	// the largest value that falls into the bucket
+	private static long highestValue(int bucket) {
+		int shift = Math.max(0, (bucket >> SUB_BITS) - 1);
+		long lowest = (long) (bucket - (shift << SUB_BITS)) << shift;
+		return lowest + (1L << shift) - 1;
+	}
+
+	/**
+	 *
+	 * Snapshot
+	 *
+	 * The counts of a LatencyHistogram at one moment, with percentiles. It does
+	 * not change after it is taken.
+	 *
+	 */
+	public static class Snapshot {
+		private final long[] counts;
+		private final long count;
+		private final long max;
+
+		private Snapshot(long[] counts, long max) {
+			this.counts = counts;
+			long count = 0;
+			for (long c : counts) {
+				count += c;
+			}
+			this.count = count;
+			this.max = max;
+		}
+
+		public long getCount() {
+			return this.count;
+		}
+
+		// the largest value recorded, exactly (not rounded to a bucket)
+		public long getMax() {
+			return this.max;
+		}
+
+		/**
+		 * public long valueAtPercentile(double percentile)
+		 *
+		 * returns the smallest value v such that percentile% of the recorded values
+		 * are <= v, rounded up to its bucket and capped by the maximum. returns 0 if
+		 * nothing was recorded.
+		 */
+		public long valueAtPercentile(double percentile) {
+			if (this.count == 0) {
+				return 0;
+			}
+			long rank = Math.max(1, (long) Math.ceil(Math.min(percentile, 100) / 100 * this.count));
+			long seen = 0;
+			for (int i = 0; i < this.counts.length; i++) {
+				seen += this.counts[i];
+				if (seen >= rank) {
+					return Math.min(highestValue(i), this.max);
+				}
+			}
+			return this.max;
+		}
+
+		public long getP50() {
+			return this.valueAtPercentile(50);
+		}
+
+		public long getP99() {
+			return this.valueAtPercentile(99);
+		}
+
+		public long getP999() {
+			return this.valueAtPercentile(99.9);
+		}
+
+		public String toString() {
+			return "count=" + this.count + " p50=" + this.getP50() + "ns p99=" + this.getP99() + "ns p99.9="
+					+ this.getP999() + "ns max=" + this.max + "ns";
+		}
+	}
+}
@@ -0,0 +1,332 @@
+import java.util.NoSuchElementException;
+
+/**
+ *
+ * LongLongAVLTree
+ *
+ * An AVL Tree with distinct long keys and long values. Keys and values are fields
+ * of the nodes, so nothing is boxed. There is no virtual leaf - a missing child
+ * is null - so every long can be a key (AVLTree reserves -1).
+ *
+ * Generated from PrimitiveAVLTree.template by GeneratePrimitiveAVLTrees, like
+ * the other primitive specializations: change the template, not this file.
+ *
+ */
+public class LongLongAVLTree {
+
+	private Node root;
+	private Node min;
+	private Node max;
+
+	/**
+	 * public boolean empty()
+	 *
+	 * returns true if and only if the tree is empty
+	 *
+	 */
+	public boolean empty() {
+		return this.root == null;
+	}
+
+	/**
+	 * public int size()
+	 *
+	 * Returns the number of nodes in the tree.
+	 */
+	public int size() {
+		return size(this.root);
+	}
+
+	// returns the height of the tree, -1 if it's empty
+	public int getHeight() {
+		return height(this.root);
+	}
+
+	/**
+	 * public boolean contains(long k)
+	 *
+	 * returns true if an item with key k is in the tree
+	 */
+	public boolean contains(long k) {
+		return this.searchNode(k) != null;
+	}
+
+	/**
+	 * public long search(long k, long notFound)
+	 *
+	 * returns the value of the item with key k, or notFound if there is none
+	 */
+	public long search(long k, long notFound) {
+		Node node = this.searchNode(k);
+		return node == null ? notFound : value(node);
+	}
+
+	/**
+	 * public long minKey() / maxKey()
+	 *
+	 * Returns the smallest / largest key in the tree
+	 *
+	 * precondition: !empty()
+	 */
+	public long minKey() {
+		if (this.min == null) {
+			throw new NoSuchElementException("tree is empty");
+		}
+		return this.min.key;
+	}
+
+	public long maxKey() {
+		if (this.max == null) {
+			throw new NoSuchElementException("tree is empty");
+		}
+		return this.max.key;
+	}
+
+	/**
+	 * public int insert(long k, long v)
+	 *
+	 * inserts an item with key k and value v to the tree. returns the number of
+	 * rotations done while rebalancing (a double rotation counts as 2), or -1 if
+	 * an item with key k already exists in the tree.
+	 */
+	public int insert(long k, long v) {
+		Node parent = null;
+		Node node = this.root;
+		while (node != null) {
+			if (k == node.key) {
+				return -1;
+			}
+			parent = node;
+			node = k < node.key ? node.left : node.right;
+		}
+
+		Node newNode = new Node(k, v);
+		newNode.parent = parent;
+		if (parent == null) {
+			this.root = newNode;
+			this.min = newNode;
+			this.max = newNode;
+			return 0;
+		}
+		if (k < parent.key) {
+			parent.left = newNode;
+			if (k < this.min.key) {
+				this.min = newNode;
+			}
+		} else {
+			parent.right = newNode;
+			if (k > this.max.key) {
+				this.max = newNode;
+			}
+		}
+		return this.rebalanceUp(parent);
+	}
+
+	/**
+	 * public int delete(long k)
+	 *
+	 * deletes an item with key k from the tree, if it is there. returns the number
+	 * of rotations done while rebalancing (a double rotation counts as 2), or -1
+	 * if an item with key k was not found in the tree.
+	 */
+	public int delete(long k) {
+		Node node = this.searchNode(k);
+		if (node == null) {
+			return -1;
+		}
+
+		if (node.left != null && node.right != null) {
+			// two children: move the successor's item here and unlink the successor
+			Node successor = leftmost(node.right);
+			node.key = successor.key;
+			node.value = successor.value;
+			if (this.max == successor) {
+				this.max = node;
+			}
+			node = successor;
+		} else {
+			// the min and the max never have two children, so they are unlinked here
+			if (this.min == node) {
+				this.min = node.right != null ? leftmost(node.right) : node.parent;
+			}
+			if (this.max == node) {
+				this.max = node.left != null ? rightmost(node.left) : node.parent;
+			}
+		}
+
+		Node child = node.left != null ? node.left : node.right;
+		Node parent = node.parent;
+		this.replaceChild(parent, node, child);
+		return this.rebalanceUp(parent);
+	}
+
+	/**
+	 * public long[] keysToArray()
+	 *
+	 * Returns a sorted array which contains all keys in the tree, or an empty array
+	 * if the tree is empty.
+	 */
+	public long[] keysToArray() {
+		long[] keys = new long[this.size()];
+		int i = 0;
+		for (Node node = this.min; node != null; node = successor(node)) {
+			keys[i++] = node.key;
+		}
+		return keys;
+	}
+
+	/**
+	 * public long[] valuesToArray()
+	 *
+	 * Returns an array which contains all values in the tree, sorted by their
+	 * respective keys, or an empty array if the tree is empty.
+	 */
+	public long[] valuesToArray() {
+		long[] values = new long[this.size()];
+		int i = 0;
+		for (Node node = this.min; node != null; node = successor(node)) {
+			values[i++] = node.value;
+		}
+		return values;
+	}
+
+	private Node searchNode(long k) {
+		Node node = this.root;
+		while (node != null && k != node.key) {
+			node = k < node.key ? node.left : node.right;
+		}
+		return node;
+	}
+
+	/**
+	 * private int rebalanceUp(Node node)
+	 *
+	 * updates height and size on the path from node to the root, rotating where
+	 * the AVL invariant is broken. returns the number of rotations
+	 */
+	private int rebalanceUp(Node node) {
+		int rotations = 0;
+		while (node != null) {
+			update(node);
+			int balance = height(node.left) - height(node.right);
+			if (balance > 1) {
+				if (height(node.left.left) < height(node.left.right)) {
+					this.rotateLeft(node.left);
+					rotations++;
+				}
+				node = this.rotateRight(node);
+				rotations++;
+			} else if (balance < -1) {
+				if (height(node.right.right) < height(node.right.left)) {
+					this.rotateRight(node.right);
+					rotations++;
+				}
+				node = this.rotateLeft(node);
+				rotations++;
+			}
+			node = node.parent;
+		}
+		return rotations;
+	}
+
+	private Node rotateRight(Node node) {
+		Node leftNode = node.left;
+		this.replaceChild(node.parent, node, leftNode);
+		node.left = leftNode.right;
+		if (leftNode.right != null) {
+			leftNode.right.parent = node;
+		}
+		leftNode.right = node;
+		node.parent = leftNode;
+		update(node);
+		update(leftNode);
+		return leftNode;
+	}
+
+	private Node rotateLeft(Node node) {
+		Node rightNode = node.right;
+		this.replaceChild(node.parent, node, rightNode);
+		node.right = rightNode.left;
+		if (rightNode.left != null) {
+			rightNode.left.parent = node;
+		}
+		rightNode.left = node;
+		node.parent = rightNode;
+		update(node);
+		update(rightNode);
+		return rightNode;
+	}
+
+	// puts child where oldChild was under parent (or at the root if parent is null)
+	private void replaceChild(Node parent, Node oldChild, Node child) {
+		if (child != null) {
+			child.parent = parent;
+		}
+		if (parent == null) {
+			this.root = child;
+		} else if (parent.left == oldChild) {
+			parent.left = child;
+		} else {
+			parent.right = child;
+		}
+	}
+
+	private long value(Node node) {
+		return node.value;
+	}
+
+	// update node's height and size from its children
+	private static void update(Node node) {
+		node.height = 1 + Math.max(height(node.left), height(node.right));
+		node.size = 1 + size(node.left) + size(node.right);
+	}
+
+	private static int height(Node node) {
+		return node == null ? -1 : node.height;
+	}
+
+	private static int size(Node node) {
+		return node == null ? 0 : node.size;
+	}
+
+	private static Node leftmost(Node node) {
+		while (node.left != null) {
+			node = node.left;
+		}
+		return node;
+	}
+
+	private static Node rightmost(Node node) {
+		while (node.right != null) {
+			node = node.right;
+		}
+		return node;
+	}
+
+	private static Node successor(Node node) {
+		if (node.right != null) {
+			return leftmost(node.right);
+		}
+		Node parent = node.parent;
+		while (parent != null && parent.right == node) {
+			node = parent;
+			parent = node.parent;
+		}
+		return parent;
+	}
+
+	private static final class Node {
+		private long key;
+		private long value;
+		private Node left;
+		private Node right;
+		private Node parent;
+		private int height; // a leaf is 0, like AVLTree
+		private int size = 1;
+
+		private Node(long key, long value) {
+			this.key = key;
+			this.value = value;
+		}
+	}
+}
@@ -0,0 +1,693 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ *
+ * MappedAVLTree
+ *
+ * An AVL Tree with distinct integer keys and long payloads that lives in a
+ * file, for indexes larger than memory. Like OffHeapAVLTree a node is a
+ * fixed-width record, here addressed by a long record number, and the links
+ * between nodes are record numbers:
+ *
+ *   key | rank | left | right | parent | size | payload
+ *   4     4      8      8       8        8      8        = 48 bytes
+ *
+ * Record 0 is the header (magic, version, root, min, max, next, freeList), so
+ * record number 0 doubles as the null link. The file is mapped in segments of
+ * 2^20 records (48MB, a MappedByteBuffer holds at most 2GB), and a segment is
+ * mapped the first time a search reaches one of its records, or when the tree
+ * grows into it. Opening an existing index reads only the header; which parts
+ * of the tree stay in memory is left to the OS page cache, so the hot top
+ * levels stay resident and cold leaves are read from disk when needed.
+ *
+ * Searches, inserts and deletes run the same findPosition descent and the
+ * same rank-difference rebalancing as OffHeapAVLTree (and AVLTree), directly
+ * on the mapped records. Writes reach the file when the OS writes the pages
+ * back; force() and close() write them out at once. There is no journal, a
+ * crash in the middle of an operation can leave the file inconsistent.
+ *
+ */
+public class MappedAVLTree implements AutoCloseable {
+
+	private static final int MAGIC = 0x41564c4d; // "AVLM"
+	private static final int VERSION = 1;
+
+	private static final long NIL = 0;
+	private static final int KEY = 0;
+	private static final int RANK = 4;
+	private static final int LEFT = 8;
+	private static final int RIGHT = 16;
+	private static final int PARENT = 24;
+	private static final int SIZE = 32;
+	private static final int PAYLOAD = 40;
+	private static final int RECORD = 48;
+
+	// header fields, in record 0
+	private static final int H_MAGIC = 0;
+	private static final int H_VERSION = 4;
+	private static final int H_ROOT = 8;
+	private static final int H_MIN = 16;
+	private static final int H_MAX = 24;
+	private static final int H_NEXT = 32;
+	private static final int H_FREE_LIST = 40;
+
+	private static final int SEGMENT_SHIFT = 20;
+	private static final long SEGMENT_MASK = (1L << SEGMENT_SHIFT) - 1;
+	private static final long SEGMENT_BYTES = (long) RECORD << SEGMENT_SHIFT;
+
+	private FileChannel channel;
+	private MappedByteBuffer[] segments = new MappedByteBuffer[1];
+
+	private long root;
+	private long min;
+	private long max;
+	private long next; // first record that was never used
+	private long freeList;
+
+	private MappedAVLTree(FileChannel channel) {
+		this.channel = channel;
+	}
+
+	/**
+	 * public static MappedAVLTree open(Path file)
+	 *
+	 * opens the tree stored in file, or creates an empty one if the file does not
+	 * exist or is empty. only the header is read. throws IOException if the file
+	 * is not a MappedAVLTree.
+	 */
+	public static MappedAVLTree open(Path file) throws IOException {
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		MappedAVLTree tree = new MappedAVLTree(channel);
+		try {
+			boolean created = channel.size() == 0;
+			ByteBuffer header = tree.segment(0);
+			if (created) {
+				header.putInt(H_MAGIC, MAGIC);
+				header.putInt(H_VERSION, VERSION);
+				tree.next = 1;
+				tree.writeHeader();
+			} else if (header.getInt(H_MAGIC) != MAGIC) {
+				throw new IOException("not a MappedAVLTree file: " + file);
+			} else if (header.getInt(H_VERSION) != VERSION) {
+				throw new IOException("unsupported MappedAVLTree version " + header.getInt(H_VERSION));
+			} else {
+				tree.root = header.getLong(H_ROOT);
+				tree.min = header.getLong(H_MIN);
+				tree.max = header.getLong(H_MAX);
+				tree.next = header.getLong(H_NEXT);
+				tree.freeList = header.getLong(H_FREE_LIST);
+			}
+		} catch (IOException | RuntimeException e) { // segment() throws UncheckedIOException
+			channel.close();
+			throw e;
+		}
+		return tree;
+	}
+
+	/**
+	 * public void force()
+	 *
+	 * writes every change made so far to the file
+	 */
+	public void force() throws IOException {
+		this.ensureOpen();
+		this.writeHeader();
+		for (MappedByteBuffer segment : this.segments) {
+			if (segment != null) {
+				segment.force();
+			}
+		}
+	}
+
+	/**
+	 * public void close()
+	 *
+	 * forces the changes to the file and closes it. The tree cannot be used
+	 * afterwards. The mappings are released when the buffers are collected.
+	 * Calling close() more than once has no effect.
+	 */
+	public void close() throws IOException {
+		if (this.channel != null) {
+			this.force();
+			this.channel.close();
+			this.channel = null;
+			this.segments = null;
+		}
+	}
+
+	/**
+	 * public boolean empty()
+	 *
+	 * returns true if and only if the tree is empty
+	 *
+	 */
+	public boolean empty() {
+		this.ensureOpen();
+		return this.root == NIL;
+	}
+
+	/**
+	 * public long size()
+	 *
+	 * Returns the number of nodes in the tree.
+	 */
+	public long size() {
+		this.ensureOpen();
+		return this.size(this.root);
+	}
+
+	// returns the rank of the root, -1 if the tree is empty
+	public int getHeight() {
+		this.ensureOpen();
+		return this.rank(this.root);
+	}
+
+	/**
+	 * public long search(int k, long notFound)
+	 *
+	 * returns the payload of the item with key k if it exists in the tree,
+	 * otherwise returns notFound
+	 */
+	public long search(int k, long notFound) {
+		this.ensureOpen();
+		long node = this.findPosition(this.root, k);
+		return node != NIL && this.key(node) == k ? this.payload(node) : notFound;
+	}
+
+	/**
+	 * public int minKey() / maxKey()
+	 *
+	 * Returns the smallest / largest key in the tree. throws
+	 * NoSuchElementException if the tree is empty
+	 */
+	public int minKey() {
+		if (this.empty()) {
+			throw new NoSuchElementException();
+		}
+		return this.key(this.min);
+	}
+
+	public int maxKey() {
+		if (this.empty()) {
+			throw new NoSuchElementException();
+		}
+		return this.key(this.max);
+	}
+
+	/**
+	 * public int insert(int k, long payload)
+	 *
+	 * inserts an item with key k to the tree. returns the number of rebalancing
+	 * operations, counted as in AVLTree.insert, or -1 if an item with key k
+	 * already exists in the tree.
+	 */
+	public int insert(int k, long payload) {
+		this.ensureOpen();
+		long parent = this.findPosition(this.root, k);
+		if (parent != NIL && this.key(parent) == k) {
+			return -1;
+		}
+
+		long newNode = this.alloc(k, payload);
+		this.setParent(newNode, parent);
+		if (parent == NIL) {
+			this.root = newNode;
+			this.min = newNode;
+			this.max = newNode;
+			this.writeHeader();
+			return 0;
+		}
+		if (k < this.key(parent)) {
+			this.setLeft(parent, newNode);
+			if (k < this.key(this.min)) {
+				this.min = newNode;
+			}
+		} else {
+			this.setRight(parent, newNode);
+			if (k > this.key(this.max)) {
+				this.max = newNode;
+			}
+		}
+		for (long p = parent; p != NIL; p = this.parent(p)) {
+			this.setSize(p, this.size(p) + 1);
+		}
+		int cnt = this.rebalanceInsert(parent);
+		this.writeHeader();
+		return cnt;
+	}
+
+	// the cases of AVLTree.rebalance, walking up from the parent of a new leaf
+	private int rebalanceInsert(long node) {
+		int cnt = 0;
+		while (node != NIL) {
+			int rdl = this.rank(node) - this.rank(this.left(node));
+			int rdr = this.rank(node) - this.rank(this.right(node));
+
+			if (rdl == 0) { // problem with left subtree
+				if (rdr == 1) { // case 1: node-01, promote
+					this.promote(node);
+					cnt++;
+					node = this.parent(node);
+					continue;
+				}
+				long child = this.left(node);
+				if (this.rank(child) - this.rank(this.right(child)) == 2) { // case 2: child-12, demote + right rotate
+					this.demote(node);
+					this.rotateRight(node);
+					cnt += 2;
+				} else { // case 3: child-21, double rotation
+					long grandChild = this.right(child);
+					this.demote(node);
+					this.demote(child);
+					this.promote(grandChild);
+					this.rotateLeft(child);
+					this.rotateRight(node);
+					cnt += 5;
+				}
+				return cnt;
+			}
+
+			if (rdr == 0) { // problem with right subtree
+				if (rdl == 1) {
+					this.promote(node);
+					cnt++;
+					node = this.parent(node);
+					continue;
+				}
+				long child = this.right(node);
+				if (this.rank(child) - this.rank(this.left(child)) == 2) {
+					this.demote(node);
+					this.rotateLeft(node);
+					cnt += 2;
+				} else {
+					long grandChild = this.left(child);
+					this.demote(node);
+					this.demote(child);
+					this.promote(grandChild);
+					this.rotateRight(child);
+					this.rotateLeft(node);
+					cnt += 5;
+				}
+				return cnt;
+			}
+			return cnt; // no rank problem, done
+		}
+		return cnt;
+	}
+
+	/**
+	 * public int delete(int k)
+	 *
+	 * deletes an item with key k from the tree, if it is there. returns the number
+	 * of rebalancing operations, counted as in AVLTree.delete, or -1 if an item
+	 * with key k was not found in the tree.
+	 */
+	public int delete(int k) {
+		this.ensureOpen();
+		long node = this.findPosition(this.root, k);
+		if (node == NIL || this.key(node) != k) {
+			return -1;
+		}
+
+		if (this.left(node) != NIL && this.right(node) != NIL) {
+			// two sons: move the successor's item here and unlink the successor
+			long successor = this.leftmost(this.right(node));
+			this.setKey(node, this.key(successor));
+			this.setPayload(node, this.payload(successor));
+			if (this.max == successor) {
+				this.max = node;
+			}
+			node = successor;
+		} else {
+			// the min and the max never have two sons, so they are unlinked here
+			if (this.min == node) {
+				this.min = this.right(node) != NIL ? this.leftmost(this.right(node)) : this.parent(node);
+			}
+			if (this.max == node) {
+				this.max = this.left(node) != NIL ? this.rightmost(this.left(node)) : this.parent(node);
+			}
+		}
+
+		long child = this.left(node) != NIL ? this.left(node) : this.right(node);
+		long parent = this.parent(node);
+		this.replaceChild(parent, node, child);
+		this.free(node);
+		for (long p = parent; p != NIL; p = this.parent(p)) {
+			this.setSize(p, this.size(p) - 1);
+		}
+		int cnt = this.rebalanceDelete(parent);
+		this.writeHeader();
+		return cnt;
+	}
+
+	// the cases of AVLTree.rebalanceDelete, walking up from the parent of the unlinked node
+	private int rebalanceDelete(long node) {
+		int cnt = 0;
+		while (node != NIL) {
+			int rdl = this.rank(node) - this.rank(this.left(node));
+			int rdr = this.rank(node) - this.rank(this.right(node));
+
+			if (rdl == 2 && rdr == 2) {
+				this.demote(node);
+				cnt += 1;
+				node = this.parent(node);
+
+			} else if (rdl == 3 && rdr == 1) {
+				long y = this.right(node);
+				int ydl = this.rank(y) - this.rank(this.left(y));
+				int ydr = this.rank(y) - this.rank(this.right(y));
+				if (ydl == 1 && ydr == 1) { // single rotation, terminal
+					this.rotateLeft(node);
+					this.demote(node);
+					this.promote(y);
+					return cnt + 3;
+				}
+				if (ydl == 2 && ydr == 1) { // single rotation, y's parent may still be 2,2 or 3,1
+					this.rotateLeft(node);
+					this.demote(node);
+					this.demote(node);
+					cnt += 3;
+					node = this.parent(y);
+				} else { // 1,2: double rotation
+					long a = this.left(y);
+					this.rotateRight(y);
+					this.rotateLeft(node);
+					this.demote(node);
+					this.demote(node);
+					this.demote(y);
+					this.promote(a);
+					cnt += 6;
+					node = this.parent(a);
+				}
+
+			} else if (rdl == 1 && rdr == 3) {
+				long y = this.left(node);
+				int ydl = this.rank(y) - this.rank(this.left(y));
+				int ydr = this.rank(y) - this.rank(this.right(y));
+				if (ydl == 1 && ydr == 1) {
+					this.rotateRight(node);
+					this.demote(node);
+					this.promote(y);
+					return cnt + 3;
+				}
+				if (ydl == 1 && ydr == 2) {
+					this.rotateRight(node);
+					this.demote(node);
+					this.demote(node);
+					cnt += 3;
+					node = this.parent(y);
+				} else {
+					long a = this.right(y);
+					this.rotateLeft(y);
+					this.rotateRight(node);
+					this.demote(node);
+					this.demote(node);
+					this.demote(y);
+					this.promote(a);
+					cnt += 6;
+					node = this.parent(a);
+				}
+
+			} else {
+				return cnt; // no need for rotations :)
+			}
+		}
+		return cnt;
+	}
+
+	/**
+	 * public int[] keysToArray()
+	 *
+	 * Returns a sorted array which contains all keys in the tree, or an empty array
+	 * if the tree is empty. Reads the whole file, so it is meant for trees that
+	 * fit in memory.
+	 */
+	public int[] keysToArray() {
+		int[] keys = new int[this.arraySize()];
+		int i = 0;
+		for (long node = this.min; node != NIL; node = this.successor(node)) {
+			keys[i++] = this.key(node);
+		}
+		return keys;
+	}
+
+	/**
+	 * public long[] payloadsToArray()
+	 *
+	 * Returns an array which contains all payloads in the tree, sorted by their
+	 * respective keys, or an empty array if the tree is empty.
+	 */
+	public long[] payloadsToArray() {
+		long[] payloads = new long[this.arraySize()];
+		int i = 0;
+		for (long node = this.min; node != NIL; node = this.successor(node)) {
+			payloads[i++] = this.payload(node);
+		}
+		return payloads;
+	}
+
+	private int arraySize() {
+		long size = this.size();
+		if (size > Integer.MAX_VALUE - 8) {
+			throw new IllegalStateException("too many nodes for an array: " + size);
+		}
+		return (int) size;
+	}
+
+	// the node with key k, or the leaf under which k would be inserted, or NIL if the subtree is empty
+	private long findPosition(long node, int k) {
+		long position = NIL;
+		while (node != NIL) {
+			position = node;
+			int key = this.key(node);
+			if (k == key) {
+				return node;
+			}
+			node = k < key ? this.left(node) : this.right(node);
+		}
+		return position;
+	}
+
+	// rotations keep ranks and recompute the sizes of the two rotated nodes
+	private void rotateRight(long node) {
+		long leftNode = this.left(node);
+		this.replaceChild(this.parent(node), node, leftNode);
+		long inner = this.right(leftNode);
+		this.setLeft(node, inner);
+		if (inner != NIL) {
+			this.setParent(inner, node);
+		}
+		this.setRight(leftNode, node);
+		this.setParent(node, leftNode);
+		this.updateSize(node);
+		this.updateSize(leftNode);
+	}
+
+	private void rotateLeft(long node) {
+		long rightNode = this.right(node);
+		this.replaceChild(this.parent(node), node, rightNode);
+		long inner = this.left(rightNode);
+		this.setRight(node, inner);
+		if (inner != NIL) {
+			this.setParent(inner, node);
+		}
+		this.setLeft(rightNode, node);
+		this.setParent(node, rightNode);
+		this.updateSize(node);
+		this.updateSize(rightNode);
+	}
+
+	// puts child where oldChild was under parent (or at the root if parent is NIL)
+	private void replaceChild(long parent, long oldChild, long child) {
+		if (child != NIL) {
+			this.setParent(child, parent);
+		}
+		if (parent == NIL) {
+			this.root = child;
+		} else if (this.left(parent) == oldChild) {
+			this.setLeft(parent, child);
+		} else {
+			this.setRight(parent, child);
+		}
+	}
+
+	private void updateSize(long node) {
+		this.setSize(node, 1 + this.size(this.left(node)) + this.size(this.right(node)));
+	}
+
+	private long leftmost(long node) {
+		while (this.left(node) != NIL) {
+			node = this.left(node);
+		}
+		return node;
+	}
+
+	private long rightmost(long node) {
+		while (this.right(node) != NIL) {
+			node = this.right(node);
+		}
+		return node;
+	}
+
+	private long successor(long node) {
+		if (this.right(node) != NIL) {
+			return this.leftmost(this.right(node));
+		}
+		long parent = this.parent(node);
+		while (parent != NIL && this.right(parent) == node) {
+			node = parent;
+			parent = this.parent(node);
+		}
+		return parent;
+	}
+
+	private long alloc(int k, long payload) {
+		long node;
+		if (this.freeList != NIL) {
+			node = this.freeList;
+			this.freeList = this.left(node);
+		} else {
+			node = this.next++; // the segment is mapped, and the file grows, on first access
+		}
+		this.setKey(node, k);
+		this.setRank(node, 0);
+		this.setLeft(node, NIL);
+		this.setRight(node, NIL);
+		this.setParent(node, NIL);
+		this.setSize(node, 1);
+		this.setPayload(node, payload);
+		return node;
+	}
+
+	private void free(long node) {
+		this.setLeft(node, this.freeList);
+		this.freeList = node;
+	}
+
+	private void writeHeader() {
+		ByteBuffer header = this.segments[0];
+		header.putLong(H_ROOT, this.root);
+		header.putLong(H_MIN, this.min);
+		header.putLong(H_MAX, this.max);
+		header.putLong(H_NEXT, this.next);
+		header.putLong(H_FREE_LIST, this.freeList);
+	}
+
+	private void ensureOpen() {
+		if (this.channel == null) {
+			throw new IllegalStateException("MappedAVLTree is closed");
+		}
+	}
+
+	private void promote(long node) {
+		this.setRank(node, this.rank(node) + 1);
+	}
+
+	private void demote(long node) {
+		this.setRank(node, this.rank(node) - 1);
+	}
+
+	/**
+	 * private ByteBuffer segment(int index)
+	 *
+	 * returns the mapping of segment index, mapping it on first use. mapping
+	 * past the end of the file extends it; the new part reads as zeros and takes
+	 * no disk space until it is written. a failed mapping throws
+	 * UncheckedIOException.
+	 */
+	private ByteBuffer segment(int index) {
+		MappedByteBuffer[] segments = this.segments;
+		if (index < segments.length && segments[index] != null) {
+			return segments[index];
+		}
+		if (index >= segments.length) {
+			segments = Arrays.copyOf(segments, Math.max(index + 1, 2 * segments.length));
+			this.segments = segments;
+		}
+		MappedByteBuffer segment;
+		try {
+			segment = this.channel.map(FileChannel.MapMode.READ_WRITE, index * SEGMENT_BYTES, SEGMENT_BYTES);
+		} catch (IOException e) {
+			throw new UncheckedIOException("cannot map segment " + index, e);
+		}
+		segment.order(ByteOrder.LITTLE_ENDIAN);
+		segments[index] = segment;
+		return segment;
+	}
+
+	// record field access
+
+	private ByteBuffer buffer(long node) {
+		return this.segment((int) (node >>> SEGMENT_SHIFT));
+	}
+
+	private static int offset(long node, int field) {
+		return (int) (node & SEGMENT_MASK) * RECORD + field;
+	}
+
+	private int key(long node) {
+		return this.buffer(node).getInt(offset(node, KEY));
+	}
+
+	private int rank(long node) {
+		return node == NIL ? -1 : this.buffer(node).getInt(offset(node, RANK));
+	}
+
+	private long left(long node) {
+		return this.buffer(node).getLong(offset(node, LEFT));
+	}
+
+	private long right(long node) {
+		return this.buffer(node).getLong(offset(node, RIGHT));
+	}
+
+	private long parent(long node) {
+		return this.buffer(node).getLong(offset(node, PARENT));
+	}
+
+	private long size(long node) {
+		return node == NIL ? 0 : this.buffer(node).getLong(offset(node, SIZE));
+	}
+
+	private long payload(long node) {
+		return this.buffer(node).getLong(offset(node, PAYLOAD));
+	}
+
+	private void setKey(long node, int k) {
+		this.buffer(node).putInt(offset(node, KEY), k);
+	}
+
+	private void setRank(long node, int rank) {
+		this.buffer(node).putInt(offset(node, RANK), rank);
+	}
+
+	private void setLeft(long node, long left) {
+		this.buffer(node).putLong(offset(node, LEFT), left);
+	}
+
+	private void setRight(long node, long right) {
+		this.buffer(node).putLong(offset(node, RIGHT), right);
+	}
+
+	private void setParent(long node, long parent) {
+		this.buffer(node).putLong(offset(node, PARENT), parent);
+	}
+
+	private void setSize(long node, long size) {
+		this.buffer(node).putLong(offset(node, SIZE), size);
+	}
+
+	private void setPayload(long node, long payload) {
+		this.buffer(node).putLong(offset(node, PAYLOAD), payload);
+	}
+}
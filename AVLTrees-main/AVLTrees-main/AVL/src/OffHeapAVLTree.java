@@ -0,0 +1,686 @@
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.function.Consumer;
+
+/**
+ *
+ * OffHeapAVLTree
+ *
+ * An AVL Tree with distinct integer keys and long payloads whose nodes live
+ * outside the Java heap. A node is an int index of a fixed-width record in
+ * direct ByteBuffers:
+ *
+ *   key | left | right | parent | rank | size | payload
+ *   4     4      4       4        4      4      8        = 32 bytes
+ *
+ * Record 0 is the virtual leaf (rank -1, size 0). The records are kept in
+ * segments of 2^16 records (2MB): the first segment doubles until it reaches
+ * that size, after that the tree grows by whole segments, without copying.
+ * Freed records are reused through a free list chained through left.
+ *
+ * close() frees the buffers' memory at once, through the JDK's own cleaner of
+ * direct buffers (reached by reflection, so it compiles for Java 8 without
+ * internal API). On a JVM that does not allow this, and for a tree that is
+ * never closed, the memory is freed when the buffers are collected.
+ *
+ * Direct buffers count against -XX:MaxDirectMemorySize, which defaults to the
+ * -Xmx value: a tree of more than -Xmx / 32 nodes fails with
+ * OutOfMemoryError: Direct buffer memory unless that flag is raised, e.g. a
+ * small heap with -XX:MaxDirectMemorySize=64g for a large index.
+ *
+ * Rebalancing uses the same rank-difference rules as AVLTree.rebalance (insert)
+ * and AVLTree.rebalanceDelete (delete), and counts rebalancing operations the
+ * same way.
+ *
+ */
+public class OffHeapAVLTree implements AutoCloseable {
+
+	private static final int NIL = 0;
+	private static final int KEY = 0;
+	private static final int LEFT = 4;
+	private static final int RIGHT = 8;
+	private static final int PARENT = 12;
+	private static final int RANK = 16;
+	private static final int SIZE = 20;
+	private static final int PAYLOAD = 24;
+	private static final int RECORD = 32;
+
+	private static final int SEGMENT_SHIFT = 16;
+	private static final int SEGMENT_MASK = (1 << SEGMENT_SHIFT) - 1;
+	private static final int SEGMENT_RECORDS = 1 << SEGMENT_SHIFT;
+
+	// frees a direct buffer's memory at once, or does nothing if the JVM does not allow it
+	private static final Consumer<ByteBuffer> FREE = loadFree();
+
+	private ByteBuffer[] segments; // null once closed
+	private int capacity; // in records, including NIL
+	private int next = 1; // first record that was never used
+	private int freeList = NIL;
+
+	private int root = NIL;
+	private int min = NIL;
+	private int max = NIL;
+
+	public OffHeapAVLTree() {
+		this(16);
+	}
+
+	/**
+	 * public OffHeapAVLTree(int capacity)
+	 *
+	 * creates an empty tree with room for capacity nodes before the buffers have
+	 * to grow
+	 */
+	public OffHeapAVLTree(int capacity) {
+		int records = Math.min(Math.max(capacity, 1), Integer.MAX_VALUE - 1) + 1;
+		if (records <= SEGMENT_RECORDS) {
+			this.segments = new ByteBuffer[] { allocate(records) };
+			this.capacity = records;
+		} else {
+			this.segments = new ByteBuffer[((records - 1) >>> SEGMENT_SHIFT) + 1];
+			for (int i = 0; i < this.segments.length; i++) {
+				this.segments[i] = allocate(SEGMENT_RECORDS);
+			}
+			this.capacity = (int) Math.min((long) this.segments.length << SEGMENT_SHIFT, Integer.MAX_VALUE);
+		}
+		this.init(NIL, 0, 0L);
+		this.setRank(NIL, -1);
+		this.setSize(NIL, 0);
+	}
+
+	// a zeroed direct buffer of the given number of records, in native byte order
+	private static ByteBuffer allocate(int records) {
+		return ByteBuffer.allocateDirect(records * RECORD).order(ByteOrder.nativeOrder());
+	}
+
+	/**
+	 * private static Consumer<ByteBuffer> loadFree()
+	 *
+	 * returns Unsafe.invokeCleaner(buffer) on Java 9 and later, or
+	 * ((DirectBuffer) buffer).cleaner().clean() on Java 8, each checked on a
+	 * small buffer first. if neither works, freeing is left to the GC.
+	 */
+	private static Consumer<ByteBuffer> loadFree() {
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+			Field field = unsafeClass.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			Object unsafe = field.get(null);
+			Consumer<ByteBuffer> free = buffer -> invoke(invokeCleaner, unsafe, buffer);
+			free.accept(ByteBuffer.allocateDirect(1));
+			return free;
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			// no invokeCleaner before Java 9
+		}
+		try {
+			Method cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+			Method clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+			Consumer<ByteBuffer> free = buffer -> invoke(clean, invoke(cleaner, buffer));
+			free.accept(ByteBuffer.allocateDirect(1));
+			return free;
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			return buffer -> {
+			};
+		}
+	}
+
+	private static Object invoke(Method method, Object target, Object... args) {
+		try {
+			return method.invoke(target, args);
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException("cannot free a direct buffer", e);
+		} catch (InvocationTargetException e) {
+			throw new IllegalStateException("cannot free a direct buffer", e.getCause());
+		}
+	}
+
+	/**
+	 * public void close()
+	 *
+	 * frees the buffers of the tree. The tree cannot be used afterwards. Calling
+	 * close() more than once has no effect.
+	 */
+	public void close() {
+		if (this.segments != null) {
+			ByteBuffer[] segments = this.segments;
+			this.segments = null; // before freeing, so no access can reach freed memory
+			for (ByteBuffer segment : segments) {
+				FREE.accept(segment);
+			}
+			this.root = NIL;
+			this.min = NIL;
+			this.max = NIL;
+		}
+	}
+
+	/**
+	 * public boolean empty()
+	 *
+	 * returns true if and only if the tree is empty
+	 *
+	 */
+	public boolean empty() {
+		this.ensureOpen();
+		return this.root == NIL;
+	}
+
+	/**
+	 * public int size()
+	 *
+	 * Returns the number of nodes in the tree.
+	 */
+	public int size() {
+		this.ensureOpen();
+		return this.size(this.root);
+	}
+
+	// returns the rank of the root, -1 if the tree is empty
+	public int getHeight() {
+		this.ensureOpen();
+		return this.rank(this.root);
+	}
+
+	/**
+	 * public long search(int k, long notFound)
+	 *
+	 * returns the payload of the item with key k if it exists in the tree,
+	 * otherwise returns notFound
+	 */
+	public long search(int k, long notFound) {
+		this.ensureOpen();
+		int node = this.root;
+		while (node != NIL) {
+			int key = this.key(node);
+			if (key == k) {
+				return this.payload(node);
+			}
+			node = k < key ? this.left(node) : this.right(node);
+		}
+		return notFound;
+	}
+
+	/**
+	 * public int minKey() / maxKey()
+	 *
+	 * Returns the smallest / largest key in the tree. throws
+	 * NoSuchElementException if the tree is empty
+	 */
+	public int minKey() {
+		if (this.empty()) {
+			throw new NoSuchElementException();
+		}
+		return this.key(this.min);
+	}
+
+	public int maxKey() {
+		if (this.empty()) {
+			throw new NoSuchElementException();
+		}
+		return this.key(this.max);
+	}
+
+	/**
+	 * public int insert(int k, long payload)
+	 *
+	 * inserts an item with key k to the tree. returns the number of rebalancing
+	 * operations, counted as in AVLTree.insert, or -1 if an item with key k
+	 * already exists in the tree.
+	 */
+	public int insert(int k, long payload) {
+		this.ensureOpen();
+		int parent = NIL;
+		int node = this.root;
+		while (node != NIL) {
+			int key = this.key(node);
+			if (key == k) {
+				return -1;
+			}
+			parent = node;
+			node = k < key ? this.left(node) : this.right(node);
+		}
+
+		int newNode = this.alloc(k, payload);
+		this.setParent(newNode, parent);
+		if (parent == NIL) {
+			this.root = newNode;
+			this.min = newNode;
+			this.max = newNode;
+			return 0;
+		}
+		if (k < this.key(parent)) {
+			this.setLeft(parent, newNode);
+			if (k < this.key(this.min)) {
+				this.min = newNode;
+			}
+		} else {
+			this.setRight(parent, newNode);
+			if (k > this.key(this.max)) {
+				this.max = newNode;
+			}
+		}
+		for (int p = parent; p != NIL; p = this.parent(p)) {
+			this.setSize(p, this.size(p) + 1);
+		}
+		return this.rebalanceInsert(parent);
+	}
+
+	// the cases of AVLTree.rebalance, walking up from the parent of a new leaf
+	private int rebalanceInsert(int node) {
+		int cnt = 0;
+		while (node != NIL) {
+			int rdl = this.rank(node) - this.rank(this.left(node));
+			int rdr = this.rank(node) - this.rank(this.right(node));
+
+			if (rdl == 0) { // problem with left subtree
+				if (rdr == 1) { // case 1: node-01, promote
+					this.promote(node);
+					cnt++;
+					node = this.parent(node);
+					continue;
+				}
+				int child = this.left(node);
+				if (this.rank(child) - this.rank(this.right(child)) == 2) { // case 2: child-12, demote + right rotate
+					this.demote(node);
+					this.rotateRight(node);
+					cnt += 2;
+				} else { // case 3: child-21, double rotation
+					int grandChild = this.right(child);
+					this.demote(node);
+					this.demote(child);
+					this.promote(grandChild);
+					this.rotateLeft(child);
+					this.rotateRight(node);
+					cnt += 5;
+				}
+				return cnt;
+			}
+
+			if (rdr == 0) { // problem with right subtree
+				if (rdl == 1) {
+					this.promote(node);
+					cnt++;
+					node = this.parent(node);
+					continue;
+				}
+				int child = this.right(node);
+				if (this.rank(child) - this.rank(this.left(child)) == 2) {
+					this.demote(node);
+					this.rotateLeft(node);
+					cnt += 2;
+				} else {
+					int grandChild = this.left(child);
+					this.demote(node);
+					this.demote(child);
+					this.promote(grandChild);
+					this.rotateRight(child);
+					this.rotateLeft(node);
+					cnt += 5;
+				}
+				return cnt;
+			}
+			return cnt; // no rank problem, done
+		}
+		return cnt;
+	}
+
+	/**
+	 * public int delete(int k)
+	 *
+	 * deletes an item with key k from the tree, if it is there. returns the number
+	 * of rebalancing operations, counted as in AVLTree.delete, or -1 if an item
+	 * with key k was not found in the tree.
+	 */
+	public int delete(int k) {
+		this.ensureOpen();
+		int node = this.root;
+		while (node != NIL && this.key(node) != k) {
+			node = k < this.key(node) ? this.left(node) : this.right(node);
+		}
+		if (node == NIL) {
+			return -1;
+		}
+
+		if (this.left(node) != NIL && this.right(node) != NIL) {
+			// two sons: move the successor's item here and unlink the successor
+			int successor = this.leftmost(this.right(node));
+			this.setKey(node, this.key(successor));
+			this.setPayload(node, this.payload(successor));
+			if (this.max == successor) {
+				this.max = node;
+			}
+			node = successor;
+		} else {
+			// the min and the max never have two sons, so they are unlinked here
+			if (this.min == node) {
+				this.min = this.right(node) != NIL ? this.leftmost(this.right(node)) : this.parent(node);
+			}
+			if (this.max == node) {
+				this.max = this.left(node) != NIL ? this.rightmost(this.left(node)) : this.parent(node);
+			}
+		}
+
+		int child = this.left(node) != NIL ? this.left(node) : this.right(node);
+		int parent = this.parent(node);
+		this.replaceChild(parent, node, child);
+		this.free(node);
+		for (int p = parent; p != NIL; p = this.parent(p)) {
+			this.setSize(p, this.size(p) - 1);
+		}
+		return this.rebalanceDelete(parent);
+	}
+
+	// the cases of AVLTree.rebalanceDelete, walking up from the parent of the unlinked node
+	private int rebalanceDelete(int node) {
+		int cnt = 0;
+		while (node != NIL) {
+			int rdl = this.rank(node) - this.rank(this.left(node));
+			int rdr = this.rank(node) - this.rank(this.right(node));
+
+			if (rdl == 2 && rdr == 2) {
+				this.demote(node);
+				cnt += 1;
+				node = this.parent(node);
+
+			} else if (rdl == 3 && rdr == 1) {
+				int y = this.right(node);
+				int ydl = this.rank(y) - this.rank(this.left(y));
+				int ydr = this.rank(y) - this.rank(this.right(y));
+				if (ydl == 1 && ydr == 1) { // single rotation, terminal
+					this.rotateLeft(node);
+					this.demote(node);
+					this.promote(y);
+					return cnt + 3;
+				}
+				if (ydl == 2 && ydr == 1) { // single rotation, y's parent may still be 2,2 or 3,1
+					this.rotateLeft(node);
+					this.demote(node);
+					this.demote(node);
+					cnt += 3;
+					node = this.parent(y);
+				} else { // 1,2: double rotation
+					int a = this.left(y);
+					this.rotateRight(y);
+					this.rotateLeft(node);
+					this.demote(node);
+					this.demote(node);
+					this.demote(y);
+					this.promote(a);
+					cnt += 6;
+					node = this.parent(a);
+				}
+
+			} else if (rdl == 1 && rdr == 3) {
+				int y = this.left(node);
+				int ydl = this.rank(y) - this.rank(this.left(y));
+				int ydr = this.rank(y) - this.rank(this.right(y));
+				if (ydl == 1 && ydr == 1) {
+					this.rotateRight(node);
+					this.demote(node);
+					this.promote(y);
+					return cnt + 3;
+				}
+				if (ydl == 1 && ydr == 2) {
+					this.rotateRight(node);
+					this.demote(node);
+					this.demote(node);
+					cnt += 3;
+					node = this.parent(y);
+				} else {
+					int a = this.right(y);
+					this.rotateLeft(y);
+					this.rotateRight(node);
+					this.demote(node);
+					this.demote(node);
+					this.demote(y);
+					this.promote(a);
+					cnt += 6;
+					node = this.parent(a);
+				}
+
+			} else {
+				return cnt; // no need for rotations :)
+			}
+		}
+		return cnt;
+	}
+
+	/**
+	 * public int[] keysToArray()
+	 *
+	 * Returns a sorted array which contains all keys in the tree, or an empty array
+	 * if the tree is empty.
+	 */
+	public int[] keysToArray() {
+		int[] keys = new int[this.size()];
+		int i = 0;
+		for (int node = this.min; node != NIL; node = this.successor(node)) {
+			keys[i++] = this.key(node);
+		}
+		return keys;
+	}
+
+	/**
+	 * public long[] payloadsToArray()
+	 *
+	 * Returns an array which contains all payloads in the tree, sorted by their
+	 * respective keys, or an empty array if the tree is empty.
+	 */
+	public long[] payloadsToArray() {
+		long[] payloads = new long[this.size()];
+		int i = 0;
+		for (int node = this.min; node != NIL; node = this.successor(node)) {
+			payloads[i++] = this.payload(node);
+		}
+		return payloads;
+	}
+
+	// rotations keep ranks and recompute the sizes of the two rotated nodes
+	private void rotateRight(int node) {
+		int leftNode = this.left(node);
+		this.replaceChild(this.parent(node), node, leftNode);
+		int inner = this.right(leftNode);
+		this.setLeft(node, inner);
+		if (inner != NIL) {
+			this.setParent(inner, node);
+		}
+		this.setRight(leftNode, node);
+		this.setParent(node, leftNode);
+		this.updateSize(node);
+		this.updateSize(leftNode);
+	}
+
+	private void rotateLeft(int node) {
+		int rightNode = this.right(node);
+		this.replaceChild(this.parent(node), node, rightNode);
+		int inner = this.left(rightNode);
+		this.setRight(node, inner);
+		if (inner != NIL) {
+			this.setParent(inner, node);
+		}
+		this.setLeft(rightNode, node);
+		this.setParent(node, rightNode);
+		this.updateSize(node);
+		this.updateSize(rightNode);
+	}
+
+	// puts child where oldChild was under parent (or at the root if parent is NIL)
+	private void replaceChild(int parent, int oldChild, int child) {
+		if (child != NIL) {
+			this.setParent(child, parent);
+		}
+		if (parent == NIL) {
+			this.root = child;
+		} else if (this.left(parent) == oldChild) {
+			this.setLeft(parent, child);
+		} else {
+			this.setRight(parent, child);
+		}
+	}
+
+	private void updateSize(int node) {
+		this.setSize(node, 1 + this.size(this.left(node)) + this.size(this.right(node)));
+	}
+
+	private int leftmost(int node) {
+		while (this.left(node) != NIL) {
+			node = this.left(node);
+		}
+		return node;
+	}
+
+	private int rightmost(int node) {
+		while (this.right(node) != NIL) {
+			node = this.right(node);
+		}
+		return node;
+	}
+
+	private int successor(int node) {
+		if (this.right(node) != NIL) {
+			return this.leftmost(this.right(node));
+		}
+		int parent = this.parent(node);
+		while (parent != NIL && this.right(parent) == node) {
+			node = parent;
+			parent = this.parent(node);
+		}
+		return parent;
+	}
+
+	private int alloc(int k, long payload) {
+		int node;
+		if (this.freeList != NIL) {
+			node = this.freeList;
+			this.freeList = this.left(node);
+		} else {
+			if (this.next == this.capacity) {
+				this.grow();
+			}
+			node = this.next++;
+		}
+		this.init(node, k, payload);
+		return node;
+	}
+
+	private void free(int node) {
+		this.setLeft(node, this.freeList);
+		this.freeList = node;
+	}
+
+	// doubles the first segment until it is full size, then adds a segment
+	private void grow() {
+		if (this.capacity < SEGMENT_RECORDS) {
+			int records = Math.min(2 * this.capacity, SEGMENT_RECORDS);
+			ByteBuffer segment = allocate(records);
+			ByteBuffer old = this.segments[0];
+			old.clear();
+			segment.put(old);
+			this.segments[0] = segment;
+			FREE.accept(old);
+			this.capacity = records;
+			return;
+		}
+		if (this.capacity == Integer.MAX_VALUE) {
+			throw new IllegalStateException("OffHeapAVLTree is full");
+		}
+		this.segments = Arrays.copyOf(this.segments, this.segments.length + 1);
+		this.segments[this.segments.length - 1] = allocate(SEGMENT_RECORDS);
+		this.capacity = (int) Math.min((long) this.capacity + SEGMENT_RECORDS, Integer.MAX_VALUE);
+	}
+
+	private void init(int node, int k, long payload) {
+		this.setKey(node, k);
+		this.setLeft(node, NIL);
+		this.setRight(node, NIL);
+		this.setParent(node, NIL);
+		this.setRank(node, 0);
+		this.setSize(node, 1);
+		this.setPayload(node, payload);
+	}
+
+	private void ensureOpen() {
+		if (this.segments == null) {
+			throw new IllegalStateException("OffHeapAVLTree is closed");
+		}
+	}
+
+	private void promote(int node) {
+		this.setRank(node, this.rank(node) + 1);
+	}
+
+	private void demote(int node) {
+		this.setRank(node, this.rank(node) - 1);
+	}
+
+	// record field access
+
+	private ByteBuffer buffer(int node) {
+		return this.segments[node >>> SEGMENT_SHIFT];
+	}
+
+	private static int offset(int node, int field) {
+		return (node & SEGMENT_MASK) * RECORD + field;
+	}
+
+	private int key(int node) {
+		return this.buffer(node).getInt(offset(node, KEY));
+	}
+
+	private int left(int node) {
+		return this.buffer(node).getInt(offset(node, LEFT));
+	}
+
+	private int right(int node) {
+		return this.buffer(node).getInt(offset(node, RIGHT));
+	}
+
+	private int parent(int node) {
+		return this.buffer(node).getInt(offset(node, PARENT));
+	}
+
+	private int rank(int node) {
+		return this.buffer(node).getInt(offset(node, RANK));
+	}
+
+	private int size(int node) {
+		return this.buffer(node).getInt(offset(node, SIZE));
+	}
+
+	private long payload(int node) {
+		return this.buffer(node).getLong(offset(node, PAYLOAD));
+	}
+
+	private void setKey(int node, int k) {
+		this.buffer(node).putInt(offset(node, KEY), k);
+	}
+
+	private void setLeft(int node, int left) {
+		this.buffer(node).putInt(offset(node, LEFT), left);
+	}
+
+	private void setRight(int node, int right) {
+		this.buffer(node).putInt(offset(node, RIGHT), right);
+	}
+
+	private void setParent(int node, int parent) {
+		this.buffer(node).putInt(offset(node, PARENT), parent);
+	}
+
+	private void setRank(int node, int rank) {
+		this.buffer(node).putInt(offset(node, RANK), rank);
+	}
+
+	private void setSize(int node, int size) {
+		this.buffer(node).putInt(offset(node, SIZE), size);
+	}
+
+	private void setPayload(int node, long payload) {
+		this.buffer(node).putLong(offset(node, PAYLOAD), payload);
+	}
+}
@@ -0,0 +1,532 @@
+import java.util.NoSuchElementException;
+
+/**
+ *
+ * PersistentAVLTree
+ *
+ * An AVL tree of immutable nodes. insert, delete, join and split copy only the
+ * nodes on the root-to-leaf paths they change, O(log n) of them, and share every
+ * other subtree with the older versions of the tree.
+ *
+ * Writers are serialized (synchronized) and publish each new version through
+ * the volatile root. Readers never lock: every read takes the current root once
+ * and works on that version, so a snapshot() is O(1) and a long scan of it is
+ * consistent no matter what is written meanwhile. clone() forks the tree in
+ * O(1) in the same way.
+ *
+ * Nodes keep their height and subtree size; there are no parent pointers (a
+ * node can be shared by many versions), so in-order walks use a stack.
+ *
+ */
+public class PersistentAVLTree {
+
+	// an AVL tree of 2^31 nodes is less than 45 levels deep
+	private static final int MAX_HEIGHT = 64;
+
+	private volatile Node root;
+	private int rotations; // of the current write, guarded by this
+
+	public PersistentAVLTree() {
+	}
+
+	private PersistentAVLTree(Node root) {
+		this.root = root;
+	}
+
+	/**
+	 * public Snapshot snapshot()
+	 *
+	 * Returns a read only view of the current version of the tree. O(1)
+	 */
+	public Snapshot snapshot() {
+		return new Snapshot(this.root);
+	}
+
+	/**
+	 * public PersistentAVLTree clone()
+	 *
+	 * Returns a new tree with the same items. the two trees share their nodes
+	 * and can then be changed independently. O(1)
+	 */
+	public PersistentAVLTree clone() {
+		return new PersistentAVLTree(this.root);
+	}
+
+	/**
+	 * public boolean empty()
+	 *
+	 * returns true if and only if the tree is empty
+	 */
+	public boolean empty() {
+		return this.root == null;
+	}
+
+	/**
+	 * public String search(int k)
+	 *
+	 * returns the info of an item with key k if it exists in the tree otherwise,
+	 * returns null
+	 */
+	public String search(int k) {
+		return search(this.root, k);
+	}
+
+	/**
+	 * public String min() / max()
+	 *
+	 * Returns the info of the item with the smallest / largest key in the tree, or
+	 * null if the tree is empty
+	 */
+	public String min() {
+		return min(this.root);
+	}
+
+	public String max() {
+		return max(this.root);
+	}
+
+	/**
+	 * public int size()
+	 *
+	 * Returns the number of items in the tree.
+	 */
+	public int size() {
+		return size(this.root);
+	}
+
+	/**
+	 * public int getHeight()
+	 *
+	 * Returns the height of the tree, -1 if it is empty
+	 */
+	public int getHeight() {
+		return height(this.root);
+	}
+
+	/**
+	 * public int[] keysToArray() / String[] infoToArray()
+	 *
+	 * Returns the keys / infos of the tree, sorted by key
+	 */
+	public int[] keysToArray() {
+		return this.snapshot().keysToArray();
+	}
+
+	public String[] infoToArray() {
+		return this.snapshot().infoToArray();
+	}
+
+	/**
+	 * public synchronized int insert(int k, String i)
+	 *
+	 * inserts an item with key k and info i to the tree, as a new version of the
+	 * tree. returns the number of rotations, or -1 if an item with key k already
+	 * exists in the tree (the tree is then not changed).
+	 */
+	public synchronized int insert(int k, String i) {
+		this.rotations = 0;
+		Node newRoot = this.insert(this.root, k, i);
+		if (newRoot == this.root) {
+			return -1;
+		}
+		this.root = newRoot;
+		return this.rotations;
+	}
+
+	/**
+	 * public synchronized int delete(int k)
+	 *
+	 * deletes the item with key k from the tree, as a new version of the tree.
+	 * returns the number of rotations, or -1 if an item with key k was not found
+	 * in the tree.
+	 */
+	public synchronized int delete(int k) {
+		this.rotations = 0;
+		Node newRoot = this.delete(this.root, k);
+		if (newRoot == this.root) {
+			return -1;
+		}
+		this.root = newRoot;
+		return this.rotations;
+	}
+
+	/**
+	 * public synchronized int join(int k, String i, PersistentAVLTree t)
+	 *
+	 * joins t and a new item (k, i) with the tree. t is not changed, the result
+	 * shares its nodes. Returns the complexity of the operation
+	 * (|tree.height - t.height| + 1), like AVLTree.join.
+	 *
+	 * precondition: keys(t) < k < keys() or keys() < k < keys(t)
+	 */
+	public synchronized int join(int k, String i, PersistentAVLTree t) {
+		Node mine = this.root;
+		Node theirs = t.root; // one version of t, even if t is being written
+		int cost = Math.abs(height(mine) - height(theirs)) + 1;
+		Node smaller = mine;
+		Node bigger = theirs;
+		if ((theirs != null && theirs.key < k) || (mine != null && mine.key > k)) {
+			smaller = theirs;
+			bigger = mine;
+		}
+		if ((smaller != null && last(smaller).key >= k) || (bigger != null && first(bigger).key <= k)) {
+			throw new IllegalArgumentException("keys of the trees must be on different sides of " + k);
+		}
+		this.root = this.join(smaller, new Node(k, i, null, null), bigger);
+		return cost;
+	}
+
+	/**
+	 * public synchronized PersistentAVLTree[] split(int x)
+	 *
+	 * splits the tree into 2 trees according to the key x. Returns an array
+	 * [t1, t2] in which t1 has the keys smaller than x and t2 the keys bigger than
+	 * x. the item with key x, if any, is in neither. this tree is not changed.
+	 */
+	public synchronized PersistentAVLTree[] split(int x) {
+		Node[] parts = this.split(this.root, x);
+		return new PersistentAVLTree[] { new PersistentAVLTree(parts[0]), new PersistentAVLTree(parts[1]) };
+	}
+
+	// the new version of node's subtree with (k, i), or node itself if k is there already
+	private Node insert(Node node, int k, String i) {
+		if (node == null) {
+			return new Node(k, i, null, null);
+		}
+		if (k < node.key) {
+			Node left = this.insert(node.left, k, i);
+			return left == node.left ? node : this.balance(node, left, node.right);
+		}
+		if (k > node.key) {
+			Node right = this.insert(node.right, k, i);
+			return right == node.right ? node : this.balance(node, node.left, right);
+		}
+		return node;
+	}
+
+	// the new version of node's subtree without k, or node itself if k is not there
+	private Node delete(Node node, int k) {
+		if (node == null) {
+			return null;
+		}
+		if (k < node.key) {
+			Node left = this.delete(node.left, k);
+			return left == node.left ? node : this.balance(node, left, node.right);
+		}
+		if (k > node.key) {
+			Node right = this.delete(node.right, k);
+			return right == node.right ? node : this.balance(node, node.left, right);
+		}
+		if (node.left == null) {
+			return node.right;
+		}
+		if (node.right == null) {
+			return node.left;
+		}
+		Node successor = first(node.right); // takes node's place
+		return this.balance(successor, node.left, this.delete(node.right, successor.key));
+	}
+
+	// l, x and r as one tree, where keys(l) < x.key < keys(r); copies the spine of the higher tree
+	private Node join(Node l, Node x, Node r) {
+		if (height(l) > height(r) + 1) {
+			return this.balance(l, l.left, this.join(l.right, x, r));
+		}
+		if (height(r) > height(l) + 1) {
+			return this.balance(r, this.join(l, x, r.left), r.right);
+		}
+		return new Node(x.key, x.val, l, r);
+	}
+
+	// {keys < x, keys > x} of node's subtree, joined back from the subtrees off the search path
+	private Node[] split(Node node, int x) {
+		if (node == null) {
+			return new Node[2];
+		}
+		if (x < node.key) {
+			Node[] parts = this.split(node.left, x);
+			parts[1] = this.join(parts[1], node, node.right);
+			return parts;
+		}
+		if (x > node.key) {
+			Node[] parts = this.split(node.right, x);
+			parts[0] = this.join(node.left, node, parts[0]);
+			return parts;
+		}
+		return new Node[] { node.left, node.right };
+	}
+
+	// a copy of node with children l and r, rotated if their heights differ by 2
+	private Node balance(Node node, Node l, Node r) {
+		int hl = height(l);
+		int hr = height(r);
+		if (hl > hr + 1) {
+			if (height(l.left) < height(l.right)) { // double rotation
+				this.rotations++;
+				l = new Node(l.right.key, l.right.val, new Node(l.key, l.val, l.left, l.right.left), l.right.right);
+			}
+			this.rotations++;
+			return new Node(l.key, l.val, l.left, new Node(node.key, node.val, l.right, r));
+		}
+		if (hr > hl + 1) {
+			if (height(r.right) < height(r.left)) {
+				this.rotations++;
+				r = new Node(r.left.key, r.left.val, r.left.left, new Node(r.key, r.val, r.left.right, r.right));
+			}
+			this.rotations++;
+			return new Node(r.key, r.val, new Node(node.key, node.val, l, r.left), r.right);
+		}
+		return new Node(node.key, node.val, l, r);
+	}
+
+	private static int height(Node node) {
+		return node == null ? -1 : node.height;
+	}
+
+	private static int size(Node node) {
+		return node == null ? 0 : node.size;
+	}
+
+	private static Node first(Node node) {
+		while (node.left != null) {
+			node = node.left;
+		}
+		return node;
+	}
+
+	private static Node last(Node node) {
+		while (node.right != null) {
+			node = node.right;
+		}
+		return node;
+	}
+
+	private static String search(Node node, int k) {
+		while (node != null) {
+			if (k == node.key) {
+				return node.val;
+			}
+			node = k < node.key ? node.left : node.right;
+		}
+		return null;
+	}
+
+	private static String min(Node node) {
+		return node == null ? null : first(node).val;
+	}
+
+	private static String max(Node node) {
+		return node == null ? null : last(node).val;
+	}
+
+	/**
+	 * Snapshot
+	 *
+	 * One version of a PersistentAVLTree. it never changes, so it can be read by
+	 * any number of threads without locks.
+	 */
+	public static final class Snapshot {
+		private final Node root;
+
+		private Snapshot(Node root) {
+			this.root = root;
+		}
+
+		public boolean empty() {
+			return this.root == null;
+		}
+
+		public String search(int k) {
+			return PersistentAVLTree.search(this.root, k);
+		}
+
+		public String min() {
+			return PersistentAVLTree.min(this.root);
+		}
+
+		public String max() {
+			return PersistentAVLTree.max(this.root);
+		}
+
+		public int size() {
+			return PersistentAVLTree.size(this.root);
+		}
+
+		/**
+		 * public int[] keysToArray()
+		 *
+		 * Returns a sorted array which contains all keys in the snapshot
+		 */
+		public int[] keysToArray() {
+			final int[] keys = new int[this.size()];
+			this.forEachInRange(Integer.MIN_VALUE, Integer.MAX_VALUE, new AVLTree.IntObjConsumer() {
+				int i = 0;
+
+				public void accept(int key, String info) {
+					keys[this.i++] = key;
+				}
+			});
+			return keys;
+		}
+
+		/**
+		 * public String[] infoToArray()
+		 *
+		 * Returns an array which contains all info in the snapshot, sorted by their
+		 * respective keys
+		 */
+		public String[] infoToArray() {
+			final String[] infos = new String[this.size()];
+			this.forEachInRange(Integer.MIN_VALUE, Integer.MAX_VALUE, new AVLTree.IntObjConsumer() {
+				int i = 0;
+
+				public void accept(int key, String info) {
+					infos[this.i++] = info;
+				}
+			});
+			return infos;
+		}
+
+		/**
+		 * public void forEachInRange(int lo, int hi, AVLTree.IntObjConsumer action)
+		 *
+		 * calls action for every item with lo <= key <= hi, in increasing key
+		 * order. Complexity: O(log n + m)
+		 */
+		public void forEachInRange(int lo, int hi, AVLTree.IntObjConsumer action) {
+			Node[] stack = new Node[MAX_HEIGHT];
+			int top = 0;
+			Node node = this.root;
+			while (true) {
+				while (node != null) { // down to the smallest key >= lo, stacking the path
+					if (node.key < lo) {
+						node = node.right;
+					} else {
+						stack[top++] = node;
+						node = node.left;
+					}
+				}
+				if (top == 0) {
+					return;
+				}
+				node = stack[--top];
+				if (node.key > hi) {
+					return;
+				}
+				action.accept(node.key, node.val);
+				node = node.right;
+			}
+		}
+
+		/**
+		 * public int[] rangeToArray(int lo, int hi)
+		 *
+		 * Returns a sorted array of the keys k in the snapshot with lo <= k <= hi
+		 */
+		public int[] rangeToArray(int lo, int hi) {
+			final int[] keys = new int[this.countRange(lo, hi)];
+			this.forEachInRange(lo, hi, new AVLTree.IntObjConsumer() {
+				int i = 0;
+
+				public void accept(int key, String info) {
+					keys[this.i++] = key;
+				}
+			});
+			return keys;
+		}
+
+		/**
+		 * public int countRange(int lo, int hi)
+		 *
+		 * Returns the number of keys k in the snapshot with lo <= k <= hi. O(log n)
+		 */
+		public int countRange(int lo, int hi) {
+			if (lo > hi) {
+				return 0;
+			}
+			return this.countBelow(hi, true) - this.countBelow(lo, false);
+		}
+
+		/**
+		 * public int select(int i)
+		 *
+		 * Returns the i'th smallest key in the snapshot (0-based), like
+		 * AVLTree.select. O(log n)
+		 */
+		public int select(int i) {
+			if (i < 0 || i >= this.size()) {
+				throw new IndexOutOfBoundsException("index " + i + ", size " + this.size());
+			}
+			Node node = this.root;
+			while (true) {
+				int leftSize = PersistentAVLTree.size(node.left);
+				if (i == leftSize) {
+					return node.key;
+				}
+				if (i < leftSize) {
+					node = node.left;
+				} else {
+					i -= leftSize + 1;
+					node = node.right;
+				}
+			}
+		}
+
+		// the number of keys < k (<= k if inclusive)
+		private int countBelow(int k, boolean inclusive) {
+			int count = 0;
+			Node node = this.root;
+			while (node != null) {
+				if (k < node.key || (k == node.key && !inclusive)) {
+					node = node.left;
+				} else {
+					count += PersistentAVLTree.size(node.left) + 1;
+					node = node.right;
+				}
+			}
+			return count;
+		}
+
+		/**
+		 * public int minKey() / maxKey()
+		 *
+		 * Returns the smallest / largest key of the snapshot
+		 *
+		 * precondition: !empty()
+		 */
+		public int minKey() {
+			if (this.root == null) {
+				throw new NoSuchElementException("snapshot is empty");
+			}
+			return first(this.root).key;
+		}
+
+		public int maxKey() {
+			if (this.root == null) {
+				throw new NoSuchElementException("snapshot is empty");
+			}
+			return last(this.root).key;
+		}
+	}
+
+	/**
+	 * an immutable node; height and size are fixed by its children
+	 */
+	private static final class Node {
+		final int key;
+		final String val;
+		final Node left;
+		final Node right;
+		final int height;
+		final int size;
+
+		Node(int key, String val, Node left, Node right) {
+			this.key = key;
+			this.val = val;
+			this.left = left;
+			this.right = right;
+			this.height = Math.max(height(left), height(right)) + 1;
+			this.size = size(left) + size(right) + 1;
+		}
+	}
+}
@@ -2,8 +2,6 @@ package src;
 
 import java.util.*;
 
-import com.sun.xml.internal.ws.policy.privateutil.PolicyUtils.Collections;
-
 import src.MeasureAVL.IAVLNode;
 
 public class Measurements {